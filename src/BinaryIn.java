@@ -0,0 +1,237 @@
+/******************************************************************************
+ *  Compilation:  javac BinaryIn.java
+ *  Execution:    java BinaryIn < input > output
+ *  Dependencies: none
+ *
+ *  Supports reading binary data from an input stream, filling its buffer
+ *  in bulk rather than one byte at a time.
+ *
+ *  % java BinaryIn < input.jpg > output.jpg
+ *  % diff input.jpg output.jpg
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.NoSuchElementException;
+
+/**
+ *  The {@code BinaryIn} class provides methods for reading bits from an
+ *  arbitrary input stream. Unlike {@code BinaryStdIn}, each instance keeps its
+ *  own state, so several streams can be read at once, and codes of up to 32
+ *  bits are extracted from a 64-bit accumulator instead of one bit at a time.
+ *  <p>
+ *  All primitive types are assumed to be represented using their
+ *  standard Java representations, in big-endian (most significant
+ *  byte first) order.
+ *
+ *  @author Robert Sedgewick
+ *  @author Kevin Wayne
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class BinaryIn {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;   // input stream
+    private final byte[] bytes;     // bytes read from the stream but not yet consumed
+    private int position;           // index of the next unread byte in bytes
+    private int limit;              // number of valid bytes in bytes
+    private long buffer;            // bit accumulator (low n bits are valid)
+    private int n;                  // number of bits left in buffer
+    private boolean exhausted;      // has the underlying stream reached EOF?
+
+    /**
+     * Initializes a binary input stream from standard input.
+     */
+    public BinaryIn() {
+        this(System.in);
+    }
+
+    /**
+     * Initializes a binary input stream from the given input stream.
+     * @param in the input stream
+     */
+    public BinaryIn(InputStream in) {
+        this.in = in;
+        this.bytes = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Initializes a binary input stream that reads {@code b[off..off+len)} in place.
+     * @param b the array to read
+     * @param off the index of the first byte to read
+     * @param len the number of bytes to read
+     */
+    public BinaryIn(byte[] b, int off, int len) {
+        this.in = null;
+        this.bytes = b;
+        this.position = off;
+        this.limit = off + len;
+        this.exhausted = true;
+    }
+
+    // refill bytes from the underlying stream, returning false at EOF
+    private boolean fillBytes() {
+        if (exhausted) return false;
+        try {
+            int read;
+            do {
+                read = in.read(bytes, 0, bytes.length);
+            } while (read == 0);
+            if (read < 0) {
+                exhausted = true;
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not read from input stream", e);
+        }
+    }
+
+    // make sure at least r bits are in the accumulator, if the stream has that many
+    private void fillBuffer(int r) {
+        while (n < r) {
+            if (position == limit && !fillBytes()) return;
+            buffer = (buffer << 8) | (bytes[position++] & 0xff);
+            n += 8;
+        }
+    }
+
+    /**
+     * Returns true if this binary input stream is empty.
+     * @return true if and only if this binary input stream is empty
+     */
+    public boolean isEmpty() {
+        fillBuffer(1);
+        return n == 0;
+    }
+
+    /**
+     * Discards the bits remaining in the current byte so that the next read
+     * starts on a byte boundary.
+     */
+    public void align() {
+        n -= n % 8;
+    }
+
+    /**
+     * Reads the next bit of data from this binary input stream and return as a boolean.
+     *
+     * @return the next bit of data from this binary input stream as a {@code boolean}
+     * @throws NoSuchElementException if this binary input stream is empty
+     */
+    public boolean readBoolean() {
+        return readInt(1) == 1;
+    }
+
+    /**
+     * Reads the next 8 bits from this binary input stream and return as an 8-bit char.
+     *
+     * @return the next 8 bits of data from this binary input stream as a {@code char}
+     * @throws NoSuchElementException if there are fewer than 8 bits available
+     */
+    public char readChar() {
+        return (char) readInt(8);
+    }
+
+    /**
+     * Reads the next <em>r</em> bits from this binary input stream and return as an <em>r</em>-bit character.
+     *
+     * @param  r number of bits to read
+     * @return the next {@code r} bits of data from this binary input stream as a {@code char}
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 16}
+     */
+    public char readChar(int r) {
+        if (r < 1 || r > 16) throw new IllegalArgumentException("Illegal value of r = " + r);
+        return (char) readInt(r);
+    }
+
+    /**
+     * Reads the next 8 bits from this binary input stream and return as an 8-bit byte.
+     *
+     * @return the next 8 bits of data from this binary input stream as a {@code byte}
+     * @throws NoSuchElementException if there are fewer than 8 bits available
+     */
+    public byte readByte() {
+        return (byte) readInt(8);
+    }
+
+    /**
+     * Reads the next 32 bits from this binary input stream and return as a 32-bit int.
+     *
+     * @return the next 32 bits of data from this binary input stream as a {@code int}
+     * @throws NoSuchElementException if there are fewer than 32 bits available
+     */
+    public int readInt() {
+        return readInt(32);
+    }
+
+    /**
+     * Reads the next <em>r</em> bits from this binary input stream and return as an <em>r</em>-bit int.
+     *
+     * @param  r number of bits to read
+     * @return the next {@code r} bits of data from this binary input stream as a {@code int}
+     * @throws NoSuchElementException if there are fewer than {@code r} bits available
+     * @throws IllegalArgumentException unless {@code 1 <= r <= 32}
+     */
+    public int readInt(int r) {
+        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value of r = " + r);
+        fillBuffer(r);
+        if (n < r) throw new NoSuchElementException("Reading from empty input stream");
+        n -= r;
+        return (int) ((buffer >>> n) & ((1L << r) - 1));
+    }
+
+    /**
+     * Reads up to {@code len} whole bytes into {@code b}, starting at {@code off}.
+     * The stream must be byte-aligned (see {@link #align()}).
+     *
+     * @param  b the destination array
+     * @param  off the first index of {@code b} to write
+     * @param  len the maximum number of bytes to read
+     * @return the number of bytes read, or -1 if the stream is empty
+     * @throws IllegalStateException if the stream is not byte-aligned
+     */
+    public int readBytes(byte[] b, int off, int len) {
+        if (n % 8 != 0) throw new IllegalStateException("Bulk read from unaligned input stream");
+        if (len == 0) return 0;
+
+        // drain whole bytes still held in the accumulator
+        int count = 0;
+        while (n > 0 && count < len) {
+            n -= 8;
+            b[off + count++] = (byte) (buffer >>> n);
+        }
+
+        // then copy straight out of the byte buffer
+        while (count < len) {
+            if (position == limit && !fillBytes()) break;
+            int chunk = Math.min(len - count, limit - position);
+            System.arraycopy(bytes, position, b, off + count, chunk);
+            position += chunk;
+            count += chunk;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    /**
+     * Test client. Reads in a binary input file from standard input and writes
+     * it to standard output.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        BinaryIn in = new BinaryIn();
+        byte[] chunk = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.readBytes(chunk, 0, chunk.length)) > 0) {
+            System.out.write(chunk, 0, read);
+        }
+        System.out.flush();
+    }
+}
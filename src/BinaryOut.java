@@ -0,0 +1,191 @@
+/******************************************************************************
+ *  Compilation:  javac BinaryOut.java
+ *  Execution:    java BinaryOut
+ *  Dependencies: none
+ *
+ *  Write binary data to an output stream, either one 1-bit boolean,
+ *  one 8-bit byte, one r-bit int or one 32-bit int at a time.
+ *
+ *  The bytes written are not aligned.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ *  The {@code BinaryOut} class provides methods for writing bits to an
+ *  arbitrary output stream. Unlike {@code BinaryStdOut}, each instance keeps
+ *  its own state, so several streams can be written at once, and codes of up
+ *  to 32 bits are packed through a 64-bit accumulator into a byte buffer that
+ *  is handed to the stream in bulk.
+ *  Uses big-endian (most-significant byte first).
+ *  <p>
+ *  The client must {@code flush()} the output stream when finished writing bits.
+ *
+ *  @author Robert Sedgewick
+ *  @author Kevin Wayne
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class BinaryOut {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;  // output stream
+    private final byte[] bytes;      // whole bytes waiting to be handed to out
+    private int count;               // number of valid bytes in bytes
+    private long buffer;             // bit accumulator (low n bits are valid)
+    private int n;                   // number of bits in buffer
+
+    /**
+     * Initializes a binary output stream from standard output.
+     */
+    public BinaryOut() {
+        this(System.out);
+    }
+
+    /**
+     * Initializes a binary output stream from the given output stream.
+     * @param out the output stream
+     */
+    public BinaryOut(OutputStream out) {
+        this.out = out;
+        this.bytes = new byte[BUFFER_SIZE];
+    }
+
+    private void writeBytes() {
+        try {
+            out.write(bytes, 0, count);
+            count = 0;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not write to output stream", e);
+        }
+    }
+
+    private void writeByte(int x) {
+        if (count == bytes.length) writeBytes();
+        bytes[count++] = (byte) x;
+    }
+
+    /**
+     * Writes the specified bit to this binary output stream.
+     * @param x the {@code boolean} to write
+     */
+    public void write(boolean x) {
+        write(x ? 1 : 0, 1);
+    }
+
+    /**
+     * Writes the 8-bit byte to this binary output stream.
+     * @param x the {@code byte} to write
+     */
+    public void write(byte x) {
+        write(x & 0xff, 8);
+    }
+
+    /**
+     * Writes the 32-bit int to this binary output stream.
+     * @param x the {@code int} to write
+     */
+    public void write(int x) {
+        write(x, 32);
+    }
+
+    /**
+     * Writes the <em>r</em>-bit int to this binary output stream.
+     * @param x the {@code int} to write
+     * @param r the number of relevant bits in the int
+     * @throws IllegalArgumentException if {@code r} is not between 1 and 32.
+     * @throws IllegalArgumentException if {@code x} is not between 0 and 2<sup>r</sup> - 1.
+     */
+    public void write(int x, int r) {
+        if (r < 1 || r > 32) throw new IllegalArgumentException("Illegal value for r = " + r);
+        if (r < 32 && (x < 0 || x >= (1 << r))) throw new IllegalArgumentException("Illegal " + r + "-bit int = " + x);
+
+        buffer = (buffer << r) | (x & 0xffffffffL);
+        n += r;
+        while (n >= 8) {
+            n -= 8;
+            writeByte((int) (buffer >>> n));
+        }
+    }
+
+    /**
+     * Writes {@code len} bytes of {@code b}, starting at {@code off}.
+     * The stream must be byte-aligned.
+     *
+     * @param b the bytes to write
+     * @param off the first index of {@code b} to write
+     * @param len the number of bytes to write
+     * @throws IllegalStateException if the stream is not byte-aligned
+     */
+    public void write(byte[] b, int off, int len) {
+        if (n != 0) throw new IllegalStateException("Bulk write to unaligned output stream");
+        if (len >= bytes.length) {
+            writeBytes();
+            try {
+                out.write(b, off, len);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Could not write to output stream", e);
+            }
+            return;
+        }
+        if (count + len > bytes.length) writeBytes();
+        System.arraycopy(b, off, bytes, count, len);
+        count += len;
+    }
+
+    /**
+     * Pads the current byte with 0s so that the next write starts on a byte boundary.
+     */
+    public void align() {
+        if (n > 0) write(0, 8 - n);
+    }
+
+    /**
+     * Flushes this binary output stream, padding 0s if number of bits written so far
+     * is not a multiple of 8.
+     */
+    public void flush() {
+        align();
+        writeBytes();
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not flush output stream", e);
+        }
+    }
+
+    /**
+     * Flushes and closes this binary output stream. Once it is closed, bits can no
+     * longer be written.
+     */
+    public void close() {
+        flush();
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not close output stream", e);
+        }
+    }
+
+    /**
+     * Tests the methods in this class.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        int m = Integer.parseInt(args[0]);
+
+        // write n integers to binary standard output
+        BinaryOut out = new BinaryOut();
+        for (int i = 0; i < m; i++) {
+            out.write(i);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,103 @@
+/******************************************************************************
+ *  Compilation:  javac CodeTable.java
+ *  Dependencies: none
+ *
+ *  A hash table from (prefix code, next byte) pairs to LZW codes.
+ ******************************************************************************/
+
+import java.util.Arrays;
+
+/**
+ *  The {@code CodeTable} class holds an LZW dictionary as a map from each
+ *  code's prefix code and last byte to the code, in an open addressing table
+ *  that is never more than half full. Following a match one byte further is
+ *  one probe, however long the match is, which makes it cheaper than a
+ *  {@link TST} walk for codecs that only ever extend the current match.
+ *  <p>
+ *  A lookup that misses remembers its slot, so the code for the missing pair
+ *  can be added without probing again.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+final class CodeTable {
+
+    /** The largest code the table can hold, since a pair packs its prefix into 23 bits. */
+    static final int MAX_CODE = (1 << 23) - 1;
+
+    private final int[] keys;   // pairs stored plus one, so that 0 marks an empty slot
+    private final int[] values;
+    private int mask;
+    private int slot;           // where the last missed pair goes
+    private int key;            // the last missed pair
+
+    /**
+     * Creates an empty table with room for the given number of codes.
+     * @param capacity the most codes the table will hold
+     */
+    CodeTable(int capacity) {
+        int size = size(capacity);
+        keys = new int[size];
+        values = new int[size];
+        mask = size - 1;
+    }
+
+    // a power of two at least twice the capacity, so the table stays at most half full
+    private static int size(int capacity) {
+        return Math.max(64, Integer.highestOneBit(Math.max(capacity, 1) - 1) << 2);
+    }
+
+    /**
+     * Empties the table, and makes room for the given number of codes by using
+     * only as much of it as they need. Only that part is cleared.
+     * @param capacity the most codes the table will hold until the next clear
+     * @throws IllegalArgumentException if capacity is more than the table was created for
+     */
+    void clear(int capacity) {
+        int size = size(capacity);
+        if (size > keys.length) throw new IllegalArgumentException("Capacity " + capacity + " is too large");
+        mask = size - 1;
+        Arrays.fill(keys, 0, size, 0);
+    }
+
+    /**
+     * Returns the code for prefix followed by c, or -1 if there is none.
+     * @param prefix the code of the pair's prefix, below 2<sup>23</sup>
+     * @param c the pair's last byte, from 0 to 255
+     */
+    int get(int prefix, int c) {
+        int k = (prefix << 8 | c) + 1;
+        int h = hash(k) & mask;
+        while (keys[h] != 0) {
+            if (keys[h] == k) return values[h];
+            h = (h + 1) & mask;
+        }
+        slot = h;
+        key = k;
+        return -1;
+    }
+
+    /**
+     * Adds a code for the pair that the last call to {@link #get} did not find.
+     * Every prefix passed to get() is a byte or a code added here, so checking
+     * the code keeps every pair's key distinct.
+     * @param code the new code
+     * @throws IllegalArgumentException if code is more than {@link #MAX_CODE}
+     */
+    void add(int code) {
+        if (code > MAX_CODE) throw new IllegalArgumentException("Code " + code + " is too large");
+        keys[slot] = key;
+        values[slot] = code;
+    }
+
+    /**
+     * Returns the number of bytes the table's arrays take up.
+     */
+    long memoryUsage() {
+        return 2L * keys.length * Integer.BYTES;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
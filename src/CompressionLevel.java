@@ -0,0 +1,204 @@
+/******************************************************************************
+ *  Compilation:  javac CompressionLevel.java
+ *  Dependencies: CodeTable.java TextCompressor.java TST.java
+ *
+ *  Presets from 1 (fastest) to 9 (smallest output) for TextCompressor.
+ *
+ *  % java TextCompressor - -1 < input.txt
+ *  % java TextCompressor - -9 < input.txt
+ ******************************************************************************/
+
+/**
+ *  The {@code CompressionLevel} class bundles the settings that trade speed
+ *  for compression ratio:
+ *  <ul>
+ *  <li>the block size, since every block starts with an empty dictionary;</li>
+ *  <li>the widest code, after which the dictionary stops growing;</li>
+ *  <li>optionally, a memory budget, which caps the dictionary at however many
+ *      codes fit in it;</li>
+ *  <li>whether a full dictionary is reset to empty or frozen and kept;</li>
+ *  <li>whether blocks are checked for high entropy, and stored without trying
+ *      LZW if they look incompressible;</li>
+ *  <li>whether phrases are chosen greedily, or with one step of lookahead
+ *      (flexible parsing), which may take a shorter phrase when that lets the
+ *      next phrase reach further.</li>
+ *  </ul>
+ *  The dictionary size, reset policy and parsing are recorded in the stream, since
+ *  expand() has to follow them too: a shorter phrase usually leads to a
+ *  dictionary entry that already exists, and with flexible parsing such
+ *  duplicates take no slot. The block size and entropy check only affect
+ *  compress().
+ *  <p>
+ *  Compressing 11 MB, half English text and half Java source from java.base,
+ *  on one core. Levels 1 to 5 are greedy with a bounded dictionary, so they
+ *  keep it in a {@link CodeTable} and extend a match by one probe a byte instead
+ *  of walking a TST; each of them is meant to run at 30 MB/s or more here, well
+ *  over twice as fast as level 6:
+ *  <pre>
+ *  level  block   max bits  full    parsing    MB/s   ratio
+ *    1    256 KB     12     reset   greedy    46.4   43.7%
+ *    2    512 KB     13     reset   greedy    46.3   40.3%
+ *    3      1 MB     14     reset   greedy    44.0   37.6%
+ *    4      1 MB     15     reset   greedy    42.2   35.5%
+ *    5      1 MB     16     reset   greedy    39.4   33.3%
+ *    6      1 MB      -     -       greedy    13.6   30.7%  (default)
+ *    7      4 MB      -     -       greedy     7.8   27.8%
+ *    8      4 MB      -     -       flexible   1.7   24.6%
+ *    9     16 MB      -     -       flexible   1.6   22.5%  (no entropy check)
+ *  </pre>
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class CompressionLevel {
+
+    static final int MIN_LEVEL = 1;
+    static final int MAX_LEVEL = 9;
+
+    /** The level used when none is given, matching the behaviour before levels existed. */
+    public static final CompressionLevel DEFAULT = of(6);
+
+    private static final int KB = 1 << 10;
+    private static final int MB = 1 << 20;
+
+    // Estimated bytes of dictionary per code, whether a TST node in compress() or
+    // an entry of the prefix, last, first and length arrays in expand(). A new code
+    // adds one node, apart from the first node under each of the 256 characters.
+    // A CodeTable is between a quarter and half full when it holds as many codes
+    // as it was sized for, so it takes 16 to 32 bytes a code, no more than this
+    static final int CODE_BYTES = TST.NODE_BYTES;
+
+    // With flexible parsing, expand() also keeps a boxed key in a HashSet per code
+    static final int FLEXIBLE_CODE_BYTES = 80;
+
+    final int level;
+    final int blockSize;
+    final int maxBits;        // 0 when codes keep widening for the whole block
+    final boolean reset;      // reset (rather than freeze) a full dictionary
+    final boolean checkEntropy;
+    final boolean flexible;
+    final long memoryBudget;  // 0 when only maxBits limits the dictionary
+    private final int limit;
+
+    private CompressionLevel(int level, int blockSize, int maxBits, boolean reset, boolean checkEntropy,
+                             boolean flexible, long memoryBudget, int limit) {
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxBits = maxBits;
+        this.reset = reset;
+        this.checkEntropy = checkEntropy;
+        this.flexible = flexible;
+        this.memoryBudget = memoryBudget;
+        this.limit = limit;
+    }
+
+    private CompressionLevel(int level, int blockSize, int maxBits, boolean reset, boolean checkEntropy, boolean flexible) {
+        this(level, blockSize, maxBits, reset, checkEntropy, flexible, 0, maxBits == 0 ? Integer.MAX_VALUE : 1 << maxBits);
+    }
+
+    /**
+     * Returns the preset for the given level.
+     * @param level 1 for the fastest compression through 9 for the smallest output
+     * @return the preset for level
+     * @throws IllegalArgumentException unless {@code 1 <= level <= 9}
+     */
+    public static CompressionLevel of(int level) {
+        switch (level) {
+            case 1: return new CompressionLevel(1, 256 * KB, 12, true, true, false);
+            case 2: return new CompressionLevel(2, 512 * KB, 13, true, true, false);
+            case 3: return new CompressionLevel(3, MB, 14, true, true, false);
+            case 4: return new CompressionLevel(4, MB, 15, true, true, false);
+            case 5: return new CompressionLevel(5, MB, 16, true, true, false);
+            case 6: return new CompressionLevel(6, MB, 0, false, true, false);
+            case 7: return new CompressionLevel(7, 4 * MB, 0, false, true, false);
+            case 8: return new CompressionLevel(8, 4 * MB, 0, false, true, true);
+            case 9: return new CompressionLevel(9, 16 * MB, 0, false, false, true);
+            default: throw new IllegalArgumentException("Illegal compression level = " + level);
+        }
+    }
+
+    /**
+     * Returns a copy of this preset that cuts the input into blocks of the given size.
+     * @param blockSize the number of bytes compressed with one dictionary
+     * @return the adjusted preset
+     * @throws IllegalArgumentException if {@code blockSize < 0}
+     */
+    public CompressionLevel withBlockSize(int blockSize) {
+        if (blockSize < 0) throw new IllegalArgumentException("Illegal block size = " + blockSize);
+        return new CompressionLevel(level, blockSize, maxBits, reset, checkEntropy, flexible, memoryBudget, limit);
+    }
+
+    /**
+     * Returns a copy of this preset whose dictionary stays within the given number
+     * of bytes, in compress() and in expand() alike. Once it holds as many codes as
+     * fit, it is reset if this preset resets a full dictionary, and otherwise frozen
+     * with codes no wider than they are by then.
+     * @param bytes the most memory one dictionary may use
+     * @return the adjusted preset
+     * @throws IllegalArgumentException if fewer than 2<sup>9</sup> codes fit in bytes
+     */
+    public CompressionLevel withMemoryBudget(long bytes) {
+        long codes = bytes / (flexible ? FLEXIBLE_CODE_BYTES : CODE_BYTES);
+        if (codes < 1 << TextCompressor.MIN_BITS) {
+            throw new IllegalArgumentException("Memory budget of " + bytes + " bytes is too small");
+        }
+        int maxLimit = maxBits == 0 ? Integer.MAX_VALUE : 1 << maxBits;
+        return new CompressionLevel(level, blockSize, maxBits, reset, checkEntropy, flexible,
+                bytes, (int) Math.min(codes, maxLimit));
+    }
+
+    /**
+     * Returns the settings that a parameters record in a block container asks
+     * expand() to follow. The record holds the maximum code width and flags, then
+     * the number of slots if a memory budget set it below 2<sup>maxBits</sup>.
+     */
+    static CompressionLevel fromRecord(byte[] payload) {
+        if (payload.length != 2 && payload.length != 2 + Integer.BYTES) {
+            throw new IllegalStateException("Corrupt parameters record");
+        }
+        int maxBits = payload[0] & 0xff;
+        if (maxBits != 0 && (maxBits < TextCompressor.MIN_BITS || maxBits > 31)) {
+            throw new IllegalStateException("Illegal maximum code width " + maxBits);
+        }
+        int maxLimit = maxBits == 0 ? Integer.MAX_VALUE : 1 << maxBits;
+        int limit = maxLimit;
+        if (payload.length > 2) {
+            limit = ((payload[2] & 0xff) << 24) | ((payload[3] & 0xff) << 16) | ((payload[4] & 0xff) << 8) | (payload[5] & 0xff);
+            if (limit < 1 << TextCompressor.MIN_BITS || limit > maxLimit) {
+                throw new IllegalStateException("Illegal dictionary size " + limit);
+            }
+        }
+        boolean reset = (payload[1] & 1) != 0;
+        boolean flexible = (payload[1] & 2) != 0;
+        if (reset && (limit == Integer.MAX_VALUE || flexible)) throw new IllegalStateException("Corrupt parameters record");
+        return new CompressionLevel(0, 0, maxBits, reset, true, flexible, 0, limit);
+    }
+
+    /**
+     * Returns the payload of the parameters record for this preset, or null if
+     * expand() needs none because the dictionary is unlimited and parsing is greedy.
+     */
+    byte[] toRecord() {
+        if (limit == Integer.MAX_VALUE && !flexible) return null;
+        byte flags = (byte) ((reset ? 1 : 0) | (flexible ? 2 : 0));
+        if (maxBits != 0 && limit == 1 << maxBits) return new byte[] { (byte) maxBits, flags };
+        if (limit == Integer.MAX_VALUE) return new byte[] { 0, flags };
+        return new byte[] { (byte) maxBits, flags, (byte) (limit >>> 24), (byte) (limit >>> 16), (byte) (limit >>> 8), (byte) limit };
+    }
+
+    /**
+     * Returns the number of dictionary slots, counting from 0, that may be filled.
+     */
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the width of the code that will fill the given dictionary slot,
+     * which stops growing once every slot below the limit fits.
+     */
+    int codeWidth(int nextCode) {
+        int width = TextCompressor.codeWidth(nextCode);
+        if (limit == Integer.MAX_VALUE) return width;
+        return Math.min(width, Math.max(TextCompressor.MIN_BITS, 32 - Integer.numberOfLeadingZeros(limit - 1)));
+    }
+}
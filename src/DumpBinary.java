@@ -1,7 +1,9 @@
 /******************************************************************************
  *  Compilation:  javac DumpBinary.java
  *  Execution:    java BinaryDump n < file
- *  Dependencies: BinaryStdIn.java
+ *  Execution:    java DumpBinary lzw < file.lzw
+ *  Execution:    java DumpBinary lzw sample.txt < file.lzw (shared dictionary)
+ *  Dependencies: BinaryIn.java TextCompressor.java UnixCompress.java
  *
  *  Reads in a binary file and writes out the bits, n per line.
  *
@@ -12,43 +14,248 @@
  * 011101000001010101000100011101010100010001110100001101010100
  * 010000010100011101000011
  * 264 bits
+ *
+ *  With the "lzw" argument, parses the output of TextCompressor as a stream
+ *  of codes instead and reports statistics about it.
+ *
+ *  % java TextCompressor - < alice.txt | java DumpBinary lzw
  ******************************************************************************/
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
 /**
  *  The {@code DumpBinary} class provides a client for displaying the contents
- *  of a binary file in binary.
+ *  of a binary file in binary, or for summarizing an LZW code stream.
  *
  *  @author Robert Sedgewick
  *  @author Kevin Wayne
  *  @author Zach Blick
  */
 public class DumpBinary {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
     /**
      * Reads in a sequence of bytes from standard input and writes
      * them to standard output in binary, k bits per line,
      * where k is given as a command-line integer (defaults
      * to 16 if no integer is specified); also writes the number
-     * of bits.
+     * of bits. If the argument is "lzw", the input is parsed as a
+     * TextCompressor code stream and summarized instead.
      *
      * @param args the command-line arguments
      */
-    public static void main(String[] args) {
-        int bitsPerLine = 16;
-        if (args.length == 1) {
-            bitsPerLine = Integer.parseInt(args[0]);
+    public static void main(String[] args) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+
+        if (args.length >= 1 && args[0].equals("lzw")) {
+            SharedDictionary base = args.length > 1 ? new SharedDictionary(Files.readAllBytes(Path.of(args[1]))) : null;
+            dumpCodes(out, base);
+        } else {
+            int bitsPerLine = 16;
+            if (args.length == 1) {
+                bitsPerLine = Integer.parseInt(args[0]);
+            }
+            dumpBits(new BinaryIn(), out, bitsPerLine);
+        }
+        out.flush();
+    }
+
+    private static void dumpBits(BinaryIn in, PrintWriter out, int bitsPerLine) {
+        byte[] chunk = new byte[BUFFER_SIZE];
+        char[] line = new char[Math.max(bitsPerLine, 1)];
+        int used = 0;
+        long count = 0;
+
+        int read;
+        while ((read = in.readBytes(chunk, 0, chunk.length)) > 0) {
+            count += 8L * read;
+            if (bitsPerLine == 0) continue;
+
+            for (int i = 0; i < read; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    if (used == bitsPerLine) {
+                        out.write(line, 0, used);
+                        out.println();
+                        used = 0;
+                    }
+                    line[used++] = ((chunk[i] >>> bit) & 1) == 1 ? '1' : '0';
+                }
+            }
+        }
+        if (bitsPerLine != 0) {
+            out.write(line, 0, used);
+            out.println();
+        }
+        out.println(count + " bits");
+    }
+
+    /**
+     * Summarizes a TextCompressor stream, either a single code stream or a
+     * block container, whose blocks each start over with a fresh dictionary
+     * or with the given shared one.
+     */
+    private static void dumpCodes(PrintWriter out, SharedDictionary base) throws IOException {
+        InputStream stdin = new BufferedInputStream(System.in);
+        stdin.mark(2);
+        int magic = stdin.read();
+        boolean unix = magic == UnixCompress.MAGIC_1 && stdin.read() == UnixCompress.MAGIC_2;
+        boolean blocks = magic == TextCompressor.BLOCK_MAGIC;
+        stdin.reset();
+        if (unix) {
+            out.println("Not a TextCompressor stream: this is the .Z format of Unix compress");
+            return;
+        }
+
+        BinaryIn in = new BinaryIn(stdin);
+        CodeStats stats = new CodeStats();
+        if (!blocks) {
+            stats.parse(in, false, null, CompressionLevel.DEFAULT);
+        } else {
+            in.readInt(8);
+            CompressionLevel parameters = CompressionLevel.DEFAULT;
+            while (true) {
+                // Report a container that ends early, as expand() would refuse it
+                int type, rawLength;
+                byte[] payload;
+                try {
+                    type = in.readInt(8);
+                    if (type == TextCompressor.BLOCK_END) break;
+                    rawLength = in.readInt();
+                    payload = new byte[in.readInt()];
+                } catch (NoSuchElementException exception) {
+                    out.println("Truncated container: it ends before its end marker");
+                    break;
+                }
+                if (payload.length > 0 && in.readBytes(payload, 0, payload.length) != payload.length) {
+                    out.println("Truncated container: block of type " + type + " (" + rawLength + " bytes) is cut off");
+                    break;
+                }
+                if (type != TextCompressor.BLOCK_DICTIONARY && type != TextCompressor.BLOCK_PARAMETERS) stats.blocks++;
+                if (type == TextCompressor.BLOCK_LZW || type == TextCompressor.BLOCK_LZW_RUNS) {
+                    stats.parse(new BinaryIn(new ByteArrayInputStream(payload)), type == TextCompressor.BLOCK_LZW_RUNS, null, parameters);
+                } else if (type == TextCompressor.BLOCK_LZW_SHARED && base != null) {
+                    stats.parse(new BinaryIn(new ByteArrayInputStream(payload)), true, base, parameters);
+                } else if (type == TextCompressor.BLOCK_PARAMETERS) {
+                    parameters = CompressionLevel.fromRecord(payload);
+                    if (parameters.limit() < Integer.MAX_VALUE) {
+                        out.printf("Dictionary limited to %d codes of up to %d bits, %s when full%n", parameters.limit(),
+                                parameters.codeWidth(parameters.limit()), parameters.reset ? "reset" : "frozen");
+                    }
+                    if (parameters.flexible) out.println("Flexible parsing");
+                } else if (type == TextCompressor.BLOCK_DICTIONARY) {
+                    long version = ByteBuffer.wrap(payload).getLong();
+                    out.printf("Shared dictionary version %x%s%n", version,
+                            base == null ? " (pass its sample to parse these blocks)"
+                                    : base.version() == version ? "" : " (does not match the given sample)");
+                    if (base != null && base.version() != version) base = null;
+                } else if (type == TextCompressor.BLOCK_LZW_SHARED) {
+                    out.println("Skipped block needing the shared dictionary (" + rawLength + " bytes)");
+                } else if (type == TextCompressor.BLOCK_STORED) {
+                    stats.storedBlocks++;
+                    stats.storedBytes += rawLength;
+                } else {
+                    out.println("Unknown block type " + type + " (" + rawLength + " bytes)");
+                }
+            }
+        }
+        stats.print(out);
+    }
+
+    /**
+     * Adds up the codes that {@code TextCompressor.expand()} reads, so the
+     * statistics follow the decoder's own widths, definitions and resets.
+     */
+    private static class CodeStats implements TextCompressor.CodeListener {
+        long[] widthCounts = new long[33];
+        long[] lengthCounts = new long[32]; // bucket i holds lengths in (2^(i-1), 2^i]
+        long codeCount, literals, phrases, bits, expanded, blocks, storedBlocks, storedBytes, runs, runBytes, resets, missingEOF;
+        int longest;
+
+        void parse(BinaryIn in, boolean runCodes, SharedDictionary base, CompressionLevel level) throws IOException {
+            TextCompressor.expand(in, OutputStream.nullOutputStream(), runCodes, base, level, this);
+        }
+
+        @Override
+        public void code(int code, int width, int length) {
+            if (code < TextCompressor.EOF) literals++;
+            else phrases++;
+            codeCount++;
+            bits += width;
+            widthCounts[width]++;
+            lengthCounts[32 - Integer.numberOfLeadingZeros(length - 1)]++;
+            longest = Math.max(longest, length);
+            expanded += length;
+        }
+
+        @Override
+        public void run(int width, int period, int length) {
+            bits += width + 8 + 32;
+            if (period > 1) bits += 8L * period;
+            runs++;
+            runBytes += length;
+            expanded += length;
+        }
+
+        @Override
+        public void reset() {
+            resets++;
+        }
+
+        @Override
+        public void eof(int width) {
+            bits += width;
         }
 
-        int count;
-        for (count = 0; !BinaryStdIn.isEmpty(); count++) {
-            if (bitsPerLine == 0) {
-                BinaryStdIn.readBoolean();
-                continue;
+        @Override
+        public void truncated() {
+            missingEOF++;
+        }
+
+        void print(PrintWriter out) {
+            if (blocks > 0) out.printf("%d blocks, %d stored (%d bytes)%n", blocks, storedBlocks, storedBytes);
+            out.printf("%d codes, %d bits of codes, %s%n", codeCount, bits,
+                    missingEOF == 0 ? "EOF present" : missingEOF + " stream(s) missing EOF");
+            out.printf("%d bytes expanded, %.2f bits per byte%n", expanded, expanded == 0 ? 0.0 : (double) bits / expanded);
+
+            out.println();
+            out.println("Code widths:");
+            for (int width = 0; width < widthCounts.length; width++) {
+                if (widthCounts[width] == 0) continue;
+                out.printf("  %2d bits: %10d codes (%5.1f%%)%n", width, widthCounts[width], percent(widthCounts[width], codeCount));
             }
-            else if (count != 0 && count % bitsPerLine == 0) System.out.println();
-            if (BinaryStdIn.readBoolean()) System.out.print(1);
-            else                           System.out.print(0);
+
+            out.println();
+            out.printf("Literals: %10d (%5.1f%%)%n", literals, percent(literals, codeCount));
+            out.printf("Phrases:  %10d (%5.1f%%)%n", phrases, percent(phrases, codeCount));
+            if (runs > 0) out.printf("Runs:     %10d (%d bytes)%n", runs, runBytes);
+            if (resets > 0) out.printf("Dictionary resets: %d%n", resets);
+
+            out.println();
+            out.println("Match lengths:");
+            for (int bucket = 0; bucket < lengthCounts.length; bucket++) {
+                if (lengthCounts[bucket] == 0) continue;
+                int low = bucket <= 1 ? bucket + 1 : (1 << (bucket - 1)) + 1;
+                int high = 1 << bucket;
+                String range = low == high ? String.valueOf(low) : low + "-" + high;
+                out.printf("  %9s: %10d codes (%5.1f%%)%n", range, lengthCounts[bucket], percent(lengthCounts[bucket], codeCount));
+            }
+            out.printf("  average %.2f, longest %d%n", codeCount == 0 ? 0.0 : (double) expanded / codeCount, longest);
         }
-        if (bitsPerLine != 0) System.out.println();
-        System.out.println(count + " bits");
     }
-}
\ No newline at end of file
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0.0 : 100.0 * part / total;
+    }
+}
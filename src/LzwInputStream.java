@@ -0,0 +1,182 @@
+/******************************************************************************
+ *  Compilation:  javac LzwInputStream.java
+ *  Dependencies: TextCompressor.java SharedDictionary.java
+ *
+ *  An input stream filter that expands TextCompressor's block container as
+ *  it is read.
+ *
+ *  try (InputStream in = new LzwInputStream(Files.newInputStream(path))) {
+ *      byte[] data = in.readAllBytes();
+ *  }
+ ******************************************************************************/
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ *  The {@code LzwInputStream} class expands data compressed by
+ *  {@link LzwOutputStream} or {@code java TextCompressor -}, in the style of
+ *  {@code java.util.zip.InflaterInputStream}. One block is expanded at a time
+ *  and reads are served straight out of it; the buffers for its payload and
+ *  its expanded bytes are kept from one block to the next.
+ *  <p>
+ *  Only the block container is supported, not single code streams written by
+ *  {@code java TextCompressor - 0}. The container records the length of every
+ *  block, so this stream never reads past its end, and whatever follows it
+ *  in the underlying stream is left there for the caller.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public class LzwInputStream extends FilterInputStream {
+
+    private final SharedDictionary base;
+    private SharedDictionary recorded;
+    private CompressionLevel parameters = CompressionLevel.DEFAULT;
+    private final byte[] lengths = new byte[2 * Integer.BYTES];
+    private byte[] payload = new byte[0];   // reused for every block's payload
+    private byte[] block = new byte[0];     // reused for every expanded block
+    private int position;
+    private int limit;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Creates a new input stream.
+     * @param in the input stream
+     */
+    public LzwInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * Creates a new input stream for data compressed with a shared dictionary.
+     * @param in the input stream
+     * @param base the shared dictionary the data was compressed with, or null
+     */
+    public LzwInputStream(InputStream in, SharedDictionary base) {
+        super(in);
+        this.base = base;
+    }
+
+    // expand the next block into block, returning false at the end of the container
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+        if (!started) {
+            if (in.read() != TextCompressor.BLOCK_MAGIC) throw new IOException("Not in LZW block format");
+            started = true;
+        }
+
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0) throw new EOFException("Unexpected end of LZW input stream");
+                if (type == TextCompressor.BLOCK_END) {
+                    finished = true;
+                    return false;
+                }
+
+                readFully(lengths, lengths.length);
+                int rawLength = readInt(lengths, 0);
+                int payloadLength = readInt(lengths, Integer.BYTES);
+                if (rawLength < 0) throw new IOException("Corrupt block length");
+
+                // Stored blocks are read straight into place
+                if (type == TextCompressor.BLOCK_STORED) {
+                    if (payloadLength != rawLength) throw new IOException("Stored block has the wrong length");
+                    if (block.length < rawLength) block = new byte[rawLength];
+                    readFully(block, rawLength);
+                    position = 0;
+                    limit = rawLength;
+                    return true;
+                }
+
+                if (payload.length < payloadLength) payload = new byte[payloadLength];
+                readFully(payload, payloadLength);
+                if (type == TextCompressor.BLOCK_DICTIONARY) {
+                    recorded = TextCompressor.checkDictionary(Arrays.copyOf(payload, payloadLength), base);
+                    continue;
+                }
+                if (type == TextCompressor.BLOCK_PARAMETERS) {
+                    parameters = CompressionLevel.fromRecord(Arrays.copyOf(payload, payloadLength));
+                    continue;
+                }
+
+                if (block.length < rawLength) block = new byte[rawLength];
+                TextCompressor.expandBlock(type, payload, payloadLength, block, rawLength, recorded, parameters);
+                position = 0;
+                limit = rawLength;
+                return true;
+            }
+        } catch (IllegalStateException exception) {
+            throw new IOException(exception.getMessage(), exception);
+        }
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        if (len < 0) throw new IOException("Corrupt block length");
+        if (in.readNBytes(b, 0, len) != len) throw new EOFException("Unexpected end of LZW input stream");
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == limit) {
+            if (!nextBlock()) return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+        if (len == 0) return 0;
+        while (position == limit) {
+            if (!nextBlock()) return -1;
+        }
+
+        int chunk = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, chunk);
+        position += chunk;
+        return chunk;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (position == limit && !nextBlock()) break;
+            int chunk = (int) Math.min(n - skipped, limit - position);
+            position += chunk;
+            skipped += chunk;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without expanding another block.
+     */
+    @Override
+    public int available() throws IOException {
+        return limit - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,199 @@
+/******************************************************************************
+ *  Compilation:  javac LzwOutputStream.java
+ *  Dependencies: TextCompressor.java BinaryOut.java SharedDictionary.java
+ *
+ *  An output stream filter that compresses everything written through it
+ *  into TextCompressor's block container.
+ *
+ *  try (OutputStream out = new LzwOutputStream(Files.newOutputStream(path))) {
+ *      out.write(data);
+ *  }
+ ******************************************************************************/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ *  The {@code LzwOutputStream} class compresses data written to it, in the
+ *  style of {@code java.util.zip.DeflaterOutputStream}. Bytes are gathered
+ *  into blocks, and each full block is written as one container block, so
+ *  the output is exactly what {@code java TextCompressor -} would produce for
+ *  the same data and can be read back by {@link LzwInputStream} or
+ *  {@code java TextCompressor +}.
+ *  <p>
+ *  Writes of at least a whole block are compressed straight from the
+ *  caller's array without being copied into the block buffer.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public class LzwOutputStream extends FilterOutputStream {
+
+    private final BinaryOut bits;
+    private final SharedDictionary base;
+    private final CompressionLevel level;
+    private final boolean syncFlush;
+    private final byte[] block;
+    private final TextCompressor.Payload payload = new TextCompressor.Payload();
+    private int count;
+    private long peak;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Creates a new output stream with the default block size.
+     * @param out the output stream
+     */
+    public LzwOutputStream(OutputStream out) {
+        this(out, CompressionLevel.DEFAULT, null, false);
+    }
+
+    /**
+     * Creates a new output stream with the given compression level.
+     * @param out the output stream
+     * @param level the preset, from fastest to smallest output
+     */
+    public LzwOutputStream(OutputStream out, CompressionLevel level) {
+        this(out, level, null, false);
+    }
+
+    /**
+     * Creates a new output stream.
+     * @param out the output stream
+     * @param blockSize the number of bytes compressed with one dictionary
+     * @param base the shared dictionary every block starts from, or null
+     * @param syncFlush if true, {@link #flush()} ends the current block early so that
+     *                  everything written so far can be expanded at the other end
+     * @throws IllegalArgumentException if {@code blockSize <= 0}
+     */
+    public LzwOutputStream(OutputStream out, int blockSize, SharedDictionary base, boolean syncFlush) {
+        this(out, CompressionLevel.DEFAULT.withBlockSize(blockSize), base, syncFlush);
+    }
+
+    /**
+     * Creates a new output stream.
+     * @param out the output stream
+     * @param level the preset, whose block size must be positive
+     * @param base the shared dictionary every block starts from, or null
+     * @param syncFlush if true, {@link #flush()} ends the current block early so that
+     *                  everything written so far can be expanded at the other end
+     * @throws IllegalArgumentException if the level's block size is 0, or base does
+     *         not fit in the level's dictionary
+     */
+    public LzwOutputStream(OutputStream out, CompressionLevel level, SharedDictionary base, boolean syncFlush) {
+        super(out);
+        if (level.blockSize <= 0) throw new IllegalArgumentException("Illegal block size = " + level.blockSize);
+        TextCompressor.checkShared(base, level);
+        this.bits = new BinaryOut(out);
+        this.base = base;
+        this.level = level;
+        this.syncFlush = syncFlush;
+        this.block = new byte[level.blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) throw new IOException("write beyond end of stream");
+        block[count++] = (byte) b;
+        if (count == block.length) {
+            try {
+                writeBlock(block, 0, count);
+            } catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("write beyond end of stream");
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+
+        try {
+            // Top up a partly filled block first
+            if (count > 0) {
+                int chunk = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, chunk);
+                count += chunk;
+                off += chunk;
+                len -= chunk;
+                if (count == block.length) writeBlock(block, 0, count);
+            }
+
+            // Compress whole blocks in place
+            while (len >= block.length) {
+                writeBlock(b, off, block.length);
+                off += block.length;
+                len -= block.length;
+            }
+
+            System.arraycopy(b, off, block, count, len);
+            count += len;
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    private void writeBlock(byte[] src, int off, int len) {
+        if (!started) {
+            TextCompressor.writeHeader(bits, base, level);
+            started = true;
+        }
+        peak = Math.max(peak, TextCompressor.compressBlock(src, off, len, bits, base, level, payload));
+        if (src == block) count = 0;
+    }
+
+    /**
+     * Returns the most memory the dictionary of any block written so far took up.
+     * Use {@link CompressionLevel#withMemoryBudget(long)} to bound it.
+     * @return the peak dictionary size in bytes
+     */
+    public long peakMemoryUsage() {
+        return peak;
+    }
+
+    /**
+     * Flushes the output stream. Buffered input is only compressed and written
+     * out early if this stream was created with syncFlush.
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            if (syncFlush && count > 0 && !finished) writeBlock(block, 0, count);
+            bits.flush();
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    /**
+     * Finishes writing compressed data to the output stream without closing it.
+     * Use this when applying several filters in succession to the same stream.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        try {
+            if (count > 0) {
+                writeBlock(block, 0, count);
+            } else if (!started) {
+                TextCompressor.writeHeader(bits, base, level);
+                started = true;
+            }
+            bits.write(TextCompressor.BLOCK_END, 8);
+            bits.flush();
+            finished = true;
+        } catch (UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
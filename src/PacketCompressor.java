@@ -0,0 +1,305 @@
+/******************************************************************************
+ *  Compilation:  javac PacketCompressor.java
+ *  Execution:    java PacketCompressor - < payload.bin > payload.lzp   (compress)
+ *  Execution:    java PacketCompressor + < payload.lzp > payload.bin   (expand)
+ *  Dependencies: CodeTable.java
+ *
+ *  Compresses small payloads, such as RPC messages, in one call from one
+ *  byte array into another.
+ *
+ *  byte[] packet = new byte[PacketCompressor.maxCompressedLength(message.length)];
+ *  int n = PacketCompressor.compress(message, packet);
+ *  ...
+ *  byte[] message = new byte[PacketCompressor.expandedLength(packet, 0, n)];
+ *  PacketCompressor.expand(packet, 0, n, message, 0);
+ ******************************************************************************/
+
+import java.io.IOException;
+
+/**
+ *  The {@code PacketCompressor} class is a one-shot LZW codec for payloads too
+ *  small for the fixed costs of {@code TextCompressor}'s streams: the EOF code,
+ *  the block container and the flushes through {@code BinaryOut}. Instead:
+ *  <ul>
+ *  <li>the payload length comes first, as a varint, with its low bit set if
+ *      the payload is stored as is because LZW would not shrink it;</li>
+ *  <li>then come the codes, most significant bit first, with no EOF. The n-th
+ *      code (from 0) is just wide enough for the largest code that can exist
+ *      by then, 255 + n, so the first is 8 bits and the codes after it widen
+ *      one by one;</li>
+ *  <li>the last byte is padded out with zeros.</li>
+ *  </ul>
+ *  Both directions work straight in the caller's arrays. The dictionary is a
+ *  {@link CodeTable} in compress() and a list of (start, length) pairs
+ *  into the output in expand(); both live in arrays kept per thread, so a
+ *  call only clears the part of them that the payload needs and allocates
+ *  nothing. Use {@link LzwOutputStream} for anything larger than
+ *  {@link #MAX_LENGTH}.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class PacketCompressor {
+
+    /** The largest payload that can be compressed in one call. */
+    public static final int MAX_LENGTH = 1 << 20;
+
+    private static final int R = 256;               // number of single byte codes
+    private static final int CACHED_LENGTH = 1 << 14; // larger payloads get tables of their own
+
+    private static final ThreadLocal<CodeTable> CODES = ThreadLocal.withInitial(() -> new CodeTable(CACHED_LENGTH));
+    private static final ThreadLocal<int[][]> ENTRIES = ThreadLocal.withInitial(() -> new int[2][CACHED_LENGTH]);
+
+    // Do not instantiate
+    private PacketCompressor() { }
+
+    /**
+     * Returns the most bytes {@link #compress} can write for a payload of the given length.
+     * @param length the length of the payload
+     * @return the size of a destination array that always fits the packet
+     * @throws IllegalArgumentException unless {@code 0 <= length <= MAX_LENGTH}
+     */
+    public static int maxCompressedLength(int length) {
+        checkLength(length);
+        return varintSize(header(length, true)) + length;
+    }
+
+    /**
+     * Compresses all of src into the start of dst.
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if src is longer than {@link #MAX_LENGTH},
+     *         or the packet does not fit in dst
+     */
+    public static int compress(byte[] src, byte[] dst) {
+        return compress(src, 0, src.length, dst, 0);
+    }
+
+    /**
+     * Compresses {@code src[srcOff..srcOff+srcLen)} into dst, starting at dstOff.
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if srcLen is larger than {@link #MAX_LENGTH},
+     *         or the packet does not fit in dst
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        checkRange(src, srcOff, srcLen);
+        checkRange(dst, dstOff, 0);
+        checkLength(srcLen);
+
+        int start = dstOff + varintSize(header(srcLen, false));
+        if (start > dst.length) throw new IllegalArgumentException("Destination too small");
+        int end = srcLen == 0 ? start : writeCodes(src, srcOff, srcLen, dst, start, Math.min(dst.length, start + srcLen));
+
+        // Store the payload as is if the codes would take up more room
+        boolean stored = end < 0;
+        if (stored) {
+            end = start + srcLen;
+            if (end > dst.length) throw new IllegalArgumentException("Destination too small");
+            System.arraycopy(src, srcOff, dst, start, srcLen);
+        }
+        writeVarint(dst, dstOff, header(srcLen, stored));
+        return end - dstOff;
+    }
+
+    // writes the codes for src[off..off+len) to dst[pos..limit), returning their end or -1 if they do not fit
+    private static int writeCodes(byte[] src, int off, int len, byte[] dst, int pos, int limit) {
+        CodeTable codes = len <= CACHED_LENGTH ? CODES.get() : new CodeTable(len);
+        codes.clear(len);
+
+        long buffer = 0;  // bit accumulator (low n bits are valid)
+        int n = 0;
+        int count = 0;    // codes written so far
+        int next = R;
+        int ent = src[off] & 0xff;
+        for (int i = off + 1, end = off + len; i < end; i++) {
+            int c = src[i] & 0xff;
+
+            // Follow the longest match one byte further
+            int code = codes.get(ent, c);
+            if (code >= 0) {
+                ent = code;
+                continue;
+            }
+
+            int width = width(count++);
+            buffer = buffer << width | ent;
+            n += width;
+            while (n >= 8) {
+                if (pos == limit) return -1;
+                dst[pos++] = (byte) (buffer >>> (n - 8));
+                n -= 8;
+            }
+            codes.add(next++);
+            ent = c;
+        }
+
+        int width = width(count);
+        buffer = buffer << width | ent;
+        n += width;
+        while (n > 0) {
+            if (pos == limit) return -1;
+            dst[pos++] = (byte) (n >= 8 ? buffer >>> (n - 8) : buffer << (8 - n));
+            n -= 8;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the length of the payload in a packet, so that a destination array
+     * can be sized for {@link #expand}.
+     * @throws IllegalStateException if the packet header is corrupt
+     */
+    public static int expandedLength(byte[] src, int srcOff, int srcLen) {
+        checkRange(src, srcOff, srcLen);
+        return (int) (readVarint(src, srcOff, srcOff + srcLen) >>> 1);
+    }
+
+    /**
+     * Expands the packet filling all of src into the start of dst.
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the payload does not fit in dst
+     * @throws IllegalStateException if the packet is corrupt
+     */
+    public static int expand(byte[] src, byte[] dst) {
+        return expand(src, 0, src.length, dst, 0);
+    }
+
+    /**
+     * Expands the packet in {@code src[srcOff..srcOff+srcLen)} into dst, starting at dstOff.
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the payload does not fit in dst
+     * @throws IllegalStateException if the packet is corrupt
+     */
+    public static int expand(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        checkRange(src, srcOff, srcLen);
+        checkRange(dst, dstOff, 0);
+        int srcEnd = srcOff + srcLen;
+        long header = readVarint(src, srcOff, srcEnd);
+        int pos = srcOff + varintSize(header);
+        int len = (int) (header >>> 1);
+        if (dst.length - dstOff < len) throw new IllegalArgumentException("Destination too small for " + len + " bytes");
+        if (len == 0) return 0;
+
+        if ((header & 1) != 0) {
+            if (srcEnd - pos < len) throw new IllegalStateException("Truncated packet");
+            System.arraycopy(src, pos, dst, dstOff, len);
+            return len;
+        }
+
+        // Entry k is the len[k - R] bytes of output at start[k - R], since each
+        // entry is a phrase plus the first byte of the phrase written after it
+        int[][] entries = len <= CACHED_LENGTH ? ENTRIES.get() : new int[2][len];
+        int[] starts = entries[0];
+        int[] lengths = entries[1];
+
+        long buffer = 0;  // bit accumulator (low n bits are valid)
+        int n = 0;
+        int count = 0;    // codes read so far
+        int next = R;
+        int out = dstOff;
+        int end = dstOff + len;
+        int previousStart = -1;
+        int previousLength = 0;
+        while (out < end) {
+            int width = width(count++);
+            while (n < width) {
+                if (pos == srcEnd) throw new IllegalStateException("Truncated packet");
+                buffer = buffer << 8 | (src[pos++] & 0xff);
+                n += 8;
+            }
+            int code = (int) (buffer >>> (n - width)) & ((1 << width) - 1);
+            n -= width;
+
+            int length;
+            if (code < R) {
+                length = 1;
+                dst[out] = (byte) code;
+            } else if (code < next) {
+                length = lengths[code - R];
+                if (length > end - out) throw new IllegalStateException("Invalid code " + code);
+                System.arraycopy(dst, starts[code - R], dst, out, length);
+            } else if (code == next && previousStart >= 0) {
+                // The code being defined: the previous phrase plus its own first byte
+                length = previousLength + 1;
+                if (length > end - out) throw new IllegalStateException("Invalid code " + code);
+                System.arraycopy(dst, previousStart, dst, out, previousLength);
+                dst[out + previousLength] = dst[previousStart];
+            } else {
+                throw new IllegalStateException("Invalid code " + code);
+            }
+
+            if (previousStart >= 0) {
+                starts[next - R] = previousStart;
+                lengths[next - R] = previousLength + 1;
+                next++;
+            }
+            previousStart = out;
+            previousLength = length;
+            out += length;
+        }
+        return len;
+    }
+
+    // width of the code numbered count, wide enough for every code defined by then
+    private static int width(int count) {
+        return 32 - Integer.numberOfLeadingZeros(R - 1 + count);
+    }
+
+    private static long header(int length, boolean stored) {
+        return (long) length << 1 | (stored ? 1 : 0);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void writeVarint(byte[] dst, int pos, long value) {
+        while (value >= 0x80) {
+            dst[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[pos] = (byte) value;
+    }
+
+    private static long readVarint(byte[] src, int pos, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos == end) throw new IllegalStateException("Truncated packet");
+            int b = src[pos++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                if (value >>> 1 > MAX_LENGTH) throw new IllegalStateException("Payload too long: " + (value >>> 1));
+                return value;
+            }
+        }
+        throw new IllegalStateException("Corrupt packet header");
+    }
+
+    private static void checkLength(int length) {
+        if (length < 0 || length > MAX_LENGTH) throw new IllegalArgumentException("Illegal payload length = " + length);
+    }
+
+    private static void checkRange(byte[] b, int off, int len) {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0) throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Compresses (-) or expands (+) standard input to standard output, as one packet.
+     */
+    public static void main(String[] args) throws IOException {
+        byte[] src = System.in.readAllBytes();
+        byte[] dst;
+        int n;
+        if (args[0].equals("-")) {
+            dst = new byte[maxCompressedLength(src.length)];
+            n = compress(src, dst);
+        } else if (args[0].equals("+")) {
+            dst = new byte[expandedLength(src, 0, src.length)];
+            n = expand(src, dst);
+        } else {
+            throw new IllegalArgumentException("Illegal command line argument");
+        }
+        System.out.write(dst, 0, n);
+        System.out.flush();
+    }
+}
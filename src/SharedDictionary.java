@@ -0,0 +1,132 @@
+/******************************************************************************
+ *  Compilation:  javac SharedDictionary.java
+ *  Dependencies: TextCompressor.java TST.java
+ *
+ *  A frozen LZW dictionary learned from sample data, shared by any number
+ *  of compress() and expand() calls at once.
+ *
+ *  % java TextCompressor - -d sample.txt config1.txt config2.txt ...
+ *  % java TextCompressor + -d sample.txt config1.txt.lzw config2.txt.lzw ...
+ ******************************************************************************/
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ *  The {@code SharedDictionary} class holds the dictionary that LZW builds
+ *  while compressing a sample, so that streams of similar data can start from
+ *  it instead of from single characters. Each stream adds its own codes in a
+ *  private overlay above {@link #size}.
+ *  <p>
+ *  A dictionary is never modified once it has been built, so many threads can
+ *  read it at once without locking. Streams record its {@link #version()}, and
+ *  expand() refuses to decode them against any other dictionary.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class SharedDictionary {
+
+    static final int DEFAULT_MAX_BITS = 16;
+
+    private final TST codes;
+    private final long version;
+
+    // The first slot left for each stream's own codes
+    final int size;
+
+    // Each code as the code before it plus one last character, as in expand()
+    final int[] prefix;
+    final byte[] last;
+    final byte[] first;
+    final int[] length;
+
+    /**
+     * Learns a dictionary of up to 2<sup>16</sup> codes from the given sample.
+     * @param sample data similar to what will be compressed
+     */
+    public SharedDictionary(byte[] sample) {
+        this(sample, DEFAULT_MAX_BITS);
+    }
+
+    /**
+     * Learns a dictionary of up to 2<sup>maxBits</sup> codes from the given sample.
+     * @param sample data similar to what will be compressed
+     * @param maxBits the width of the largest code in the dictionary
+     * @throws IllegalArgumentException unless {@code 10 <= maxBits <= 24}
+     */
+    public SharedDictionary(byte[] sample, int maxBits) {
+        if (maxBits < TextCompressor.MIN_BITS + 1 || maxBits > 24) {
+            throw new IllegalArgumentException("Illegal value for maxBits = " + maxBits);
+        }
+
+        TST codes = new TST();
+        int limit = 1 << maxBits;
+        int[] prefix = new int[1 << 12];
+        byte[] last = new byte[1 << 12];
+        byte[] first = new byte[1 << 12];
+        int[] length = new int[1 << 12];
+
+        // Build the dictionary exactly as compress() would on a run-coded block
+        int currentCode = TextCompressor.RUN + 1;
+        int[] found = new int[1];
+        int i = 0;
+        while (i < sample.length && currentCode < limit) {
+            int matched = codes.longestPrefix(sample, i, sample.length, found);
+            int code = matched > 0 ? found[0] : sample[i] & 0xff;
+            int j = i + Math.max(matched, 1);
+            if (j == sample.length) break;
+
+            if (currentCode >= prefix.length) {
+                prefix = Arrays.copyOf(prefix, prefix.length * 2);
+                last = Arrays.copyOf(last, last.length * 2);
+                first = Arrays.copyOf(first, first.length * 2);
+                length = Arrays.copyOf(length, length.length * 2);
+            }
+            codes.insert(sample, i, j - i + 1, currentCode);
+            prefix[currentCode] = code;
+            last[currentCode] = sample[j];
+            first[currentCode] = sample[i];
+            length[currentCode] = j - i + 1;
+            currentCode++;
+            i = j;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(sample, 0, sample.length);
+
+        this.codes = codes;
+        this.size = currentCode;
+        this.prefix = prefix;
+        this.last = last;
+        this.first = first;
+        this.length = length;
+        this.version = (crc.getValue() << 32) | ((long) maxBits << 24) | (sample.length & 0xffffffL);
+    }
+
+    /**
+     * Returns the length of the longest phrase in the dictionary that is a prefix
+     * of {@code s[off..end)}, storing its code in code[0].
+     * @return the length of the phrase, or 0 if there is none
+     */
+    int longestPrefix(byte[] s, int off, int end, int[] code) {
+        return codes.longestPrefix(s, off, end, code);
+    }
+
+    /**
+     * Looks up the phrase {@code s[off..off+len)} in the dictionary.
+     * @return the corresponding code, or TST.EMPTY if the phrase has none.
+     */
+    int lookup(byte[] s, int off, int len) {
+        return codes.lookup(s, off, len);
+    }
+
+    /**
+     * Returns the identifier that streams compressed with this dictionary record.
+     * It is derived from the sample and the maximum code width, so the same sample
+     * always gives the same version.
+     * @return the version of this dictionary
+     */
+    public long version() {
+        return version;
+    }
+}
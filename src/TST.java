@@ -1,5 +1,9 @@
+import java.util.Arrays;
+
 /**
  * The {@code TST} class encodes a ternary search trie for use with LZW compression.
+ * Every operation walks the trie in a loop rather than recursively, so long phrases
+ * cost no stack depth, and the byte[] versions used by TextCompressor allocate nothing.
  *
  * @author Zach Blick
  * @Credit: Robert Sedgewick
@@ -9,74 +13,174 @@
 public class TST {
 
     public static final int EMPTY = -1;
+
+    // Estimated size of a Node: an object header, three references, a char and
+    // an int, with compressed references
+    public static final int NODE_BYTES = 32;
+
     private Node root;
+    private int size;
 
     /**
      * Each Node contains its own charater, as well as references to its three children.
      * If this Node's character is the terminus of a coded word, it will also contain
      * the relevant code.
      */
-    private class Node {
+    private static class Node {
         Node left, mid, right;
         char c;
-        int code;
+        int code = EMPTY;
+
+        Node(char c) {
+            this.c = c;
+        }
     }
 
     /**
-     * Recursively inserts the given word-code pair into the TST.
+     * Receives the words of the TST from {@link #forEach(Visitor)}.
+     */
+    public interface Visitor {
+        /**
+         * Called once per word, in sorted order.
+         * @param key a buffer holding the word in key[0..length); it is reused for
+         *            the next word, so copy it out if it has to be kept
+         * @param length the length of the word
+         * @param code the code for the word
+         */
+        void visit(char[] key, int length, int code);
+    }
+
+    /**
+     * Inserts the given word-code pair into the TST.
      * @param s The word to insert.
      * @param code The code for the given word.
      */
     public void insert(String s, int code) {
-        root = insert(s, root, code, 0);
+        Node n = first(s.charAt(0));
+        for (int depth = 1; depth < s.length(); depth++) {
+            n = next(n, s.charAt(depth));
+        }
+        n.code = code;
     }
 
-    public Node insert(String s, Node n, int code, int depth) {
-        char current = s.charAt(depth);
-        if(n == null) {
-            n = new Node();
-            n.c = current;
+    /**
+     * Inserts the word {@code s[off..off+len)}, one char per byte, into the TST.
+     * @param s The bytes holding the word.
+     * @param off The index of the first byte of the word.
+     * @param len The length of the word, at least 1.
+     * @param code The code for the given word.
+     */
+    public void insert(byte[] s, int off, int len, int code) {
+        Node n = first((char) (s[off] & 0xff));
+        for (int i = off + 1; i < off + len; i++) {
+            n = next(n, (char) (s[i] & 0xff));
         }
-        if (current < n.c)
-            n.left = insert(s, n.left, code, depth);
-        else if (current > n.c)
-            n.right = insert(s, n.right, code, depth);
-        else if (depth < s.length() - 1) {
-            n.mid = insert(s, n.mid, code, depth + 1);
+        n.code = code;
+    }
+
+    // the node for c as the first character, created if missing
+    private Node first(char c) {
+        if (root == null) root = newNode(c);
+        return find(root, c);
+    }
+
+    // the node for c as the character after n, created if missing
+    private Node next(Node n, char c) {
+        if (n.mid == null) n.mid = newNode(c);
+        return find(n.mid, c);
+    }
+
+    // the node for c among n and its left and right subtrees, created if missing
+    private Node find(Node n, char c) {
+        while (c != n.c) {
+            if (c < n.c) {
+                if (n.left == null) n.left = newNode(c);
+                n = n.left;
+            }
+            else {
+                if (n.right == null) n.right = newNode(c);
+                n = n.right;
+            }
         }
-        else n.code = code;
         return n;
     }
 
+    private Node newNode(char c) {
+        size++;
+        return new Node(c);
+    }
+
+    /**
+     * Returns the number of nodes in the TST.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the estimated number of bytes the nodes of the TST take up.
+     */
+    public long memoryUsage() {
+        return (long) size * NODE_BYTES;
+    }
+
     public String getLongestPrefix(String s) {
         return getLongestPrefix(s, 0);
     }
 
     /**
-     * Returns the longest prefix in the TST that matches the given substring of s starting at index start.
+     * Returns the longest word in the TST that is a prefix of the substring of s starting at index start.
      * @param s The target word, from which the substring is constructed.
      * @param start The starting index of the substring.
-     * @return a String of all characters that match the given substring.
-     * If no characters match, the empty String is returned.
+     * @return the longest matching word.
+     * If no word matches, the empty String is returned.
      */
-    public String getLongestPrefix(String s,  int start) {
-        return prefix(s, root, start, "");
+    public String getLongestPrefix(String s, int start) {
+        int longest = 0;
+        Node n = root;
+        int depth = start;
+        while (n != null && depth < s.length()) {
+            char current = s.charAt(depth);
+            if (current < n.c) n = n.left;
+            else if (current > n.c) n = n.right;
+            else {
+                depth++;
+                if (n.code != EMPTY) longest = depth - start;
+                n = n.mid;
+            }
+        }
+        return s.substring(start, start + longest);
     }
 
-    private String prefix(String s, Node n, int depth, String prefix) {
-        if (n == null) return prefix;
-
-        char current = s.charAt(depth);
-        if (current < n.c)
-            return prefix(s, n.left, depth, prefix);
-        else if (current > n.c)
-            return prefix(s, n.right, depth, prefix);
-        else if (depth < s.length() - 1)
-            return prefix(s, n.mid, depth + 1, prefix + current);
-        else return prefix + current;
+    /**
+     * Returns the length of the longest word in the TST that is a prefix of
+     * {@code s[off..end)}, reading one char per byte, and stores its code in code[0].
+     * @param s The bytes to match.
+     * @param off The index of the first byte to match.
+     * @param end The index just past the last byte that may be matched.
+     * @param code Where to store the code of the match; left alone if there is none.
+     * @return the length of the longest matching word, or 0 if no word matches.
+     */
+    public int longestPrefix(byte[] s, int off, int end, int[] code) {
+        int longest = 0;
+        Node n = root;
+        int i = off;
+        while (n != null && i < end) {
+            char current = (char) (s[i] & 0xff);
+            if (current < n.c) n = n.left;
+            else if (current > n.c) n = n.right;
+            else {
+                i++;
+                if (n.code != EMPTY) {
+                    longest = i - off;
+                    code[0] = n.code;
+                }
+                n = n.mid;
+            }
+        }
+        return longest;
     }
 
-
     /**
      * Looks up the given String in the TST, returning the code associated with the word.
      * @param s The target String
@@ -84,41 +188,107 @@ public class TST {
      * present, EMPTY is returned.
      */
     public int lookup(String s) {
-        return lookup(s, root, 0);
+        Node n = root;
+        int depth = 0;
+        while (n != null) {
+            char current = s.charAt(depth);
+            if (current < n.c) n = n.left;
+            else if (current > n.c) n = n.right;
+            else if (depth < s.length() - 1) {
+                n = n.mid;
+                depth++;
+            }
+            else return n.code;
+        }
+        return EMPTY;
     }
 
-    public int lookup(String s, Node n, int depth) {
-        if (n == null) return EMPTY;
-
-        char current = s.charAt(depth);
-        if (current < n.c)
-            return lookup(s, n.left, depth);
-        else if (current > n.c)
-            return lookup(s, n.right, depth);
-        else if (depth < s.length() - 1)
-            return lookup(s, n.mid, depth + 1);
-        else return n.code;
-
+    /**
+     * Looks up the word {@code s[off..off+len)}, one char per byte, in the TST.
+     * @param s The bytes holding the word.
+     * @param off The index of the first byte of the word.
+     * @param len The length of the word, at least 1.
+     * @return the corresponding code, or EMPTY if the word has none.
+     */
+    public int lookup(byte[] s, int off, int len) {
+        Node n = root;
+        int i = off;
+        int last = off + len - 1;
+        while (n != null) {
+            char current = (char) (s[i] & 0xff);
+            if (current < n.c) n = n.left;
+            else if (current > n.c) n = n.right;
+            else if (i < last) {
+                n = n.mid;
+                i++;
+            }
+            else return n.code;
+        }
+        return EMPTY;
     }
 
     /**
-     * Recursively prints the TST (using a preorder traversal).
+     * Calls the visitor with every word in the TST and its code, in sorted order.
+     * The walk keeps its own stack, and fills in one key buffer for every word
+     * instead of building a String per node.
+     * @param visitor The visitor to call.
      */
-    public void print() {
-        printTST(root, "");
-    }
+    public void forEach(Visitor visitor) {
+        if (root == null) return;
 
-    private void printTST(Node n, String s) {
-        if (n == null) {
-            return;
-        }
+        // Each frame holds a node, its depth, and whether its left subtree is done
+        Node[] nodes = new Node[64];
+        int[] depths = new int[64];
+        boolean[] leftDone = new boolean[64];
+        char[] key = new char[64];
+        int top = 0;
+        nodes[0] = root;
+
+        while (top >= 0) {
+            Node n = nodes[top];
+            int depth = depths[top];
+            if (!leftDone[top]) {
+                leftDone[top] = true;
+                if (n.left == null) continue;
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * top);
+                    depths = Arrays.copyOf(depths, 2 * top);
+                    leftDone = Arrays.copyOf(leftDone, 2 * top);
+                }
+                nodes[top] = n.left;
+                depths[top] = depth;
+                leftDone[top] = false;
+                continue;
+            }
 
-        // If this node ends a word, print it out!
-        s += n.c;
-        if (n.code != EMPTY) System.out.println(s);
+            // If this node ends a word, visit it!
+            if (depth == key.length) key = Arrays.copyOf(key, 2 * depth);
+            key[depth] = n.c;
+            if (n.code != EMPTY) visitor.visit(key, depth + 1, n.code);
 
-        printTST(n.left, s);
-        printTST(n.mid, s);
-        printTST(n.right, s);
+            // The right subtree takes over this frame, with the middle one above it
+            if (n.right != null) {
+                nodes[top] = n.right;
+                leftDone[top] = false;
+            }
+            else top--;
+            if (n.mid != null) {
+                if (++top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * top);
+                    depths = Arrays.copyOf(depths, 2 * top);
+                    leftDone = Arrays.copyOf(leftDone, 2 * top);
+                }
+                nodes[top] = n.mid;
+                depths[top] = depth + 1;
+                leftDone[top] = false;
+            }
+        }
+    }
+
+    /**
+     * Prints every word in the TST, in sorted order.
+     */
+    public void print() {
+        forEach((key, length, code) -> System.out.println(new String(key, 0, length)));
     }
 }
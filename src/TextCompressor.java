@@ -1,8 +1,14 @@
 /******************************************************************************
  *  Compilation:  javac TextCompressor.java
- *  Execution:    java TextCompressor - < input.txt   (compress)
+ *  Execution:    java TextCompressor - < input.txt   (compress, 1 MB blocks)
+ *  Execution:    java TextCompressor - n < input.txt (compress, sync point every n bytes)
+ *  Execution:    java TextCompressor - 0 < input.txt (compress, single code stream)
+ *  Execution:    java TextCompressor - -9 < input.txt (compress, level 1 = fastest to 9 = smallest)
+ *  Execution:    java TextCompressor - -m 64m < input.txt (compress, dictionary within 64 MB)
+ *  Execution:    java TextCompressor - -Z < input.txt (compress, .Z format of Unix compress)
  *  Execution:    java TextCompressor + < input.txt   (expand)
- *  Dependencies: BinaryIn.java BinaryOut.java
+ *  Execution:    java TextCompressor + -Z < input.txt.Z (expand, .Z format)
+ *  Dependencies: BinaryIn.java BinaryOut.java CodeTable.java CompressionLevel.java UnixCompress.java
  *  Data files:   abra.txt
  *                jabberwocky.txt
  *                shakespeare.txt
@@ -17,137 +23,933 @@
  *  % java DumpBinary 0 < alice.txt
  *  1104064 bits
  *  % java TextCompressor - < alice.txt | java DumpBinary 0
- *  480760 bits
- *  = 43.54% compression ratio!
+ *  426888 bits
+ *  = 38.67% compression ratio!
  ******************************************************************************/
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *  The {@code TextCompressor} class provides static methods for compressing
  *  and expanding natural language through textfile input.
+ *  <p>
+ *  The input is cut into blocks (1 MB unless another sync interval is
+ *  given), each compressed with a fresh dictionary and prefixed with its
+ *  sizes, so that {@code expand()} can decode the blocks on separate cores.
+ *  Blocks that LZW would not shrink, such as already-compressed or random
+ *  data, are stored as-is instead. Within compressed blocks, long runs of
+ *  one byte, or of a short pattern such as "-=", are written as a single RUN
+ *  code rather than phrase by phrase, and are found eight bytes at a time. A
+ *  sync interval of 0 writes a single LZW code stream with no container.
  *
  *  @author Zach Blick, Alexandre Haddad-Delaveau
  */
 public class TextCompressor {
 
-    static int EOF = 0x100;
-    static int START = EOF + 1;
+    static final int EOF = 0x100;
+    static final int START = EOF + 1;
+    static final int RUN = EOF + 1; // only in run-coded blocks, where codes start one later
 
-    static int CURRENT_BITS = 9; // # of bits per code / char (9 MINIMUM)
-    static int MAX_CODE = (int) (Math.pow(2, CURRENT_BITS)) - 1;
+    static final int MIN_BITS = 9; // # of bits per code / char (9 MINIMUM)
 
-    private static void writeCode(String value, TST codes, boolean lastCode) {
-        if (value.length() == 1) {
-            BinaryStdOut.write((int) value.charAt(0), CURRENT_BITS);
-        } else {
-            BinaryStdOut.write(codes.lookup(value), CURRENT_BITS);
-        }
+    // Block container: no plain code stream can start with this byte, since its
+    // first 9-bit code is always a character or EOF
+    static final int BLOCK_MAGIC = 0xFF;
+    static final int BLOCK_END = 0;
+    static final int BLOCK_LZW = 1;
+    static final int BLOCK_STORED = 2;
+    static final int BLOCK_LZW_RUNS = 3;
+    static final int BLOCK_DICTIONARY = 4; // payload is the SharedDictionary version
+    static final int BLOCK_LZW_SHARED = 5; // run-coded, starting from the shared dictionary
+    static final int BLOCK_PARAMETERS = 6; // payload is the maximum code width and flags (reset, flexible)
 
-        // Write EOF value if this is the last code
-        if (lastCode) {
-            BinaryStdOut.write(EOF, CURRENT_BITS);
-            BinaryStdOut.close();
-        }
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    // Bits per byte above which a block is stored without trying LZW; every
+    // literal costs at least 9 bits, so near-uniform bytes only ever grow
+    static final double STORE_ENTROPY = 7.9;
+
+    // Shortest run written as a RUN code. LZW needs ~sqrt(2n) phrases for a new run
+    // of n bytes, but learns short runs that recur on its own: on logs, listings,
+    // tar files, binaries, hex dumps and sparse CSV, a limit of 64 gave 0.2% more
+    // output in total than 256 and a limit of 24 gave 5% more, at the same speed
+    static final int MIN_RUN = 256;
+
+    // A RUN code may instead repeat a pattern of up to MAX_PERIOD bytes, such as
+    // "00 " or "-=". Its length then has the sign bit set, which no run length
+    // has, and is followed by the length of the pattern and the rest of its bytes
+    static final int MAX_PERIOD = 8;
+    static final int REPEAT_FLAG = 1 << 31;
+
+    // How much further a shorter phrase and the one after it must reach than the
+    // greedy phrase and the one after it. The shorter phrase gives up a dictionary
+    // entry, so reaching just one byte further loses more than it gains
+    static final int FLEXIBLE_MARGIN = 2;
+
+    // Widest codes for which greedy compression keeps its dictionary in a CodeTable
+    // rather than a TST, as levels 1 to 5 do. Wider codes come from levels that let
+    // the dictionary grow for the whole block or a memory budget caps, where a table
+    // sized for the limit up front would take far more memory than the TST
+    static final int TABLE_BITS = 16;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Returns the width of the code that will fill the given dictionary slot.
+     * Codes start at 9 bits and widen by one bit each time the slots run out,
+     * which both compress() and expand() track independently.
+     */
+    static int codeWidth(int nextCode) {
+        if (nextCode < (1 << MIN_BITS) - 1) return MIN_BITS;
+        return Math.max(MIN_BITS + 1, 32 - Integer.numberOfLeadingZeros(nextCode));
     }
 
-    private static void increaseSize() {
-        CURRENT_BITS++;
-        MAX_CODE = (int) (Math.pow(2, CURRENT_BITS));
+    /**
+     * Writes the LZW code stream for {@code src[off..off+len)} to out, ending with EOF.
+     */
+    static void compress(byte[] src, int off, int len, BinaryOut out) {
+        compress(src, off, len, out, false, null, CompressionLevel.DEFAULT);
     }
 
-    private static void compress() {
+    /**
+     * Writes the LZW code stream for {@code src[off..off+len)} to out, ending with EOF.
+     * If runs is set, long runs of one byte or of a pattern of up to MAX_PERIOD bytes
+     * are written as a RUN code followed by the pattern and the run length instead
+     * of being matched phrase by phrase.
+     * If base is given, codes start from that shared dictionary rather than from
+     * single characters, and new codes go to a private TST above it. The level
+     * sets the size of the dictionary, what happens when it is full and how
+     * phrases are chosen.
+     * @return the most memory the dictionary took up, in bytes
+     */
+    static long compress(byte[] src, int off, int len, BinaryOut out, boolean runs, SharedDictionary base,
+                         CompressionLevel level) {
+        if (base == null && !level.flexible && level.maxBits != 0 && level.maxBits <= TABLE_BITS) {
+            return compressTable(src, off, len, out, runs, level);
+        }
+
         // Store codes in TST
         TST codes = new TST();
-        int currentCode = START;
-
-        // Read input file
-        String chars = String.valueOf(BinaryStdIn.readChar());
-        while (!BinaryStdIn.isEmpty()) {
-
-            // Read chars until no existing match is found in codes
-            while (codes.lookup(chars) != TST.EMPTY || chars.length() == 1) {
-                try {
-                    chars += BinaryStdIn.readChar(8);
-                } catch (NoSuchElementException exception) {
-                    // If we've reached the end of the file, write the value & exit
-                    writeCode(chars, codes, true);
-                    System.exit(0);
+        long peak = 0;
+        int firstCode = base != null ? base.size : runs ? RUN + 1 : START;
+        int currentCode = firstCode;
+        int limit = level.limit();
+        int skipped = 0;
+        int[] found = new int[1];
+        int[] period = new int[1];
+
+        int i = off, end = off + len;
+        int nextRun = runs ? nextRun(src, i, end, period) : end;
+        while (i < end) {
+            if (i == nextRun) {
+                i = writeRun(src, i, end, period[0], out, level.codeWidth(currentCode + skipped));
+                nextRun = nextRun(src, i, end, period);
+                continue;
+            }
+
+            // Read chars until no existing match is found in codes, stopping at the next run
+            int length = match(src, i, nextRun, codes, base, found);
+            int code = found[0];
+
+            // Take a shorter phrase if the one after it then reaches clearly further
+            if (level.flexible && length > 1 && i + length < nextRun) {
+                int best = length;
+                int bestReach = length + match(src, i + length, nextRun, codes, base, found);
+                for (int shorter = length - 1; shorter >= 1; shorter--) {
+                    int reach = shorter + match(src, i + shorter, nextRun, codes, base, found);
+                    if (reach > bestReach + (best == length ? FLEXIBLE_MARGIN : 0)) {
+                        best = shorter;
+                        bestReach = reach;
+                    }
+                }
+                if (best < length) {
+                    length = best;
+                    code = length == 1 ? src[i] & 0xff : lookup(src, i, length, codes, base);
                 }
             }
 
-            // Substring the written value (no lookahead character)
-            String writtenValue = chars.substring(0, chars.length() - 1);
+            // Write value to output
+            out.write(code, level.codeWidth(currentCode + skipped));
 
-            // Create new code with characters read, as long as we haven't reached the max code
-            if (currentCode >= MAX_CODE) {
-                increaseSize();
+            // Create new code with the lookahead character. After a shorter phrase it
+            // usually exists already, and then no slot is used up; expand() sees the same
+            // duplicate one code later, so this code's width still counts the slot
+            int j = i + length;
+            skipped = 0;
+            if (j < nextRun && currentCode < limit) {
+                if (level.flexible && lookup(src, i, length + 1, codes, base) != TST.EMPTY) skipped = 1;
+                else if (!overBudget(codes, level)) codes.insert(src, i, length + 1, currentCode);
+            }
+            if (skipped == 0) currentCode++;
+            if (currentCode == limit && level.reset) {
+                peak = Math.max(peak, codes.memoryUsage());
+                codes = new TST();
+                currentCode = firstCode;
             }
+            i = j;
+        }
 
-            codes.insert(chars, currentCode);
+        out.write(EOF, level.codeWidth(currentCode + skipped));
+        return Math.max(peak, codes.memoryUsage());
+    }
+
+    /**
+     * Does the work of compress() for greedy parsing into a dictionary of at most
+     * 2<sup>TABLE_BITS</sup> codes that starts from single characters, which is
+     * what the fast levels use. The codes are kept in a CodeTable instead of a TST,
+     * so extending the match by a byte is a single probe rather than a walk from
+     * the root, and the codes written are the same. The table is sized for the
+     * codes the block can define, and takes 16 to 32 bytes a code, which is within
+     * a memory budget's CODE_BYTES a code.
+     * @return the memory the table took up, in bytes
+     */
+    private static long compressTable(byte[] src, int off, int len, BinaryOut out, boolean runs,
+                                      CompressionLevel level) {
+        int firstCode = runs ? RUN + 1 : START;
+        int currentCode = firstCode;
+        int limit = level.limit();
+        int capacity = Math.min(limit, len + 1);
+        CodeTable codes = new CodeTable(capacity);
+        int[] period = new int[1];
+
+        int i = off, end = off + len;
+        int nextRun = runs ? nextRun(src, i, end, period) : end;
+        while (i < end) {
+            if (i == nextRun) {
+                i = writeRun(src, i, end, period[0], out, level.codeWidth(currentCode));
+                nextRun = nextRun(src, i, end, period);
+                continue;
+            }
+
+            // Follow the match one byte at a time, stopping at the next run
+            int code = src[i] & 0xff;
+            int j = i + 1;
+            while (j < nextRun) {
+                int longer = codes.get(code, src[j] & 0xff);
+                if (longer < 0) break;
+                code = longer;
+                j++;
+            }
+            out.write(code, level.codeWidth(currentCode));
+
+            // The lookup that ended the match left its slot for the new code
+            if (j < nextRun && currentCode < limit) codes.add(currentCode);
             currentCode++;
+            if (currentCode == limit && level.reset) {
+                codes.clear(capacity);
+                currentCode = firstCode;
+            }
+            i = j;
+        }
 
-            // Write value to output
-            writeCode(writtenValue, codes, BinaryStdIn.isEmpty());
+        out.write(EOF, level.codeWidth(currentCode));
+        return codes.memoryUsage();
+    }
+
+    /**
+     * Writes the RUN code for the span at src[i] that repeats its first period
+     * bytes, with the given code width, and returns the index just past the span.
+     */
+    private static int writeRun(byte[] src, int i, int end, int period, BinaryOut out, int width) {
+        int runEnd = runEnd(src, i, period, end);
+        out.write(RUN, width);
+        out.write(src[i] & 0xff, 8);
+        if (period == 1) {
+            out.write(runEnd - i);
+        } else {
+            out.write((runEnd - i) | REPEAT_FLAG);
+            out.write(period, 8);
+            for (int k = 1; k < period; k++) out.write(src[i + k] & 0xff, 8);
+        }
+        return runEnd;
+    }
+
+    /**
+     * Returns true if the TST has used up the level's memory budget. The slot limit
+     * keeps it within budget on its own, unless it holds codes on top of a shared
+     * dictionary: each of those may need a node for every character of its phrase.
+     * Codes left out of the TST are simply never used again, which expand() cannot
+     * tell apart from codes that were not needed, but flexible parsing has to see
+     * the same duplicates as expand(), so writeHeader() rules that case out.
+     */
+    private static boolean overBudget(TST codes, CompressionLevel level) {
+        return level.memoryBudget > 0 && codes.memoryUsage() + TST.NODE_BYTES > level.memoryBudget;
+    }
+
+    /**
+     * Returns the length of the longest phrase in the dictionary that starts at
+     * src[i] and ends by end, storing its code in found[0]. Every prefix of a
+     * phrase is a phrase too, so the longest word in either trie is the match.
+     */
+    private static int match(byte[] src, int i, int end, TST codes, SharedDictionary base, int[] found) {
+        int length = codes.longestPrefix(src, i, end, found);
+        int code = found[0];
+        if (base != null) {
+            int shared = base.longestPrefix(src, i, end, found);
+            if (shared > length) {
+                length = shared;
+                code = found[0];
+            }
+        }
+        if (length == 0) {
+            length = 1;
+            code = src[i] & 0xff;
+        }
+        found[0] = code;
+        return length;
+    }
 
-            // Reset chars string
-            chars = chars.substring(chars.length() - 1);
+    private static int lookup(byte[] src, int off, int len, TST codes, SharedDictionary base) {
+        int code = base != null ? base.lookup(src, off, len) : TST.EMPTY;
+        return code != TST.EMPTY ? code : codes.lookup(src, off, len);
+    }
+
+    /**
+     * Returns the start of the first span of at least MIN_RUN bytes in
+     * {@code src[from..end)} that repeats a pattern of one to MAX_PERIOD bytes, or
+     * end if there is none, and stores the length of the pattern in period[0].
+     * Words of eight bytes are checked at a time against the words 5, 6, 7 and 8
+     * bytes further on, which between them catch every period up to eight.
+     */
+    static int nextRun(byte[] src, int from, int end, int[] period) {
+        int i = from;
+        while (i + 2 * Long.BYTES <= end) {
+            long word = (long) LONGS.get(src, i);
+            if (word != (long) LONGS.get(src, i + 8) && word != (long) LONGS.get(src, i + 7)
+                    && word != (long) LONGS.get(src, i + 6) && word != (long) LONGS.get(src, i + 5)) {
+                i += Long.BYTES;
+                continue;
+            }
+
+            int p = 1;
+            while (word != (long) LONGS.get(src, i + p)) p++;
+            int runStart = i;
+            while (runStart > from && src[runStart - 1] == src[runStart - 1 + p]) runStart--;
+            int runEnd = runEnd(src, i, p, end);
+            if (runEnd - runStart >= MIN_RUN) {
+                period[0] = p;
+                return runStart;
+            }
+            i = runEnd;
         }
+        return end;
+    }
+
+    /**
+     * Returns the index just past the span that starts at from and repeats its
+     * first period bytes, comparing eight bytes at a time.
+     */
+    static int runEnd(byte[] src, int from, int period, int end) {
+        int i = from;
+        while (i + period + Long.BYTES <= end) {
+            long difference = (long) LONGS.get(src, i) ^ (long) LONGS.get(src, i + period);
+            if (difference != 0) return i + period + Long.numberOfTrailingZeros(difference) / 8;
+            i += Long.BYTES;
+        }
+        while (i + period < end && src[i + period] == src[i]) i++;
+        return i + period;
+    }
+
+    /**
+     * Reads an LZW code stream up to its EOF code and writes the expanded bytes to out.
+     */
+    static void expand(BinaryIn in, OutputStream out) throws IOException {
+        expand(in, out, false, null, CompressionLevel.DEFAULT);
+    }
+
+    /**
+     * Reads an LZW code stream up to its EOF code and writes the expanded bytes to out.
+     * If runs is set, the stream may contain RUN codes written by compress(). If
+     * base is given, the stream was compressed starting from that dictionary, and
+     * the level gives the code width and reset policy it was compressed with.
+     */
+    static void expand(BinaryIn in, OutputStream out, boolean runs, SharedDictionary base,
+                       CompressionLevel level) throws IOException {
+        expand(in, out, runs, base, level, null);
     }
 
-    private static void expand() {
-        // Store codes in a Map
-        String[] codes = new String[Integer.MAX_VALUE/2];
-        int currentCode = START;
+    /**
+     * Like expand() above, but also tells listener, if not null, about each code
+     * as it is read.
+     */
+    static void expand(BinaryIn in, OutputStream out, boolean runs, SharedDictionary base,
+                       CompressionLevel level, CodeListener listener) throws IOException {
+        // Each code is stored as the code before it plus one last character
+        int[] prefix = base != null ? base.prefix.clone() : new int[1 << 12];
+        byte[] last = base != null ? base.last.clone() : new byte[1 << 12];
+        byte[] first = base != null ? base.first.clone() : new byte[1 << 12];
+        int[] length = base != null ? base.length.clone() : new int[1 << 12];
+        byte[] value = new byte[1 << 12];
+
+        int firstCode = base != null ? base.size : runs ? RUN + 1 : START;
+        int currentCode = firstCode;
+        int limit = level.limit();
+        int previous = -1;
+
+        // With flexible parsing, a definition that repeats an existing code takes no slot
+        HashSet<Long> defined = level.flexible ? new HashSet<>() : null;
+        for (int k = firstCode - 1; defined != null && k > EOF; k--) {
+            if (length[k] > 0) defined.add(key(prefix[k], last[k]));
+        }
+
+        while (true) {
+            int width = level.codeWidth(currentCode);
+            int code;
+            try {
+                code = in.readInt(width);
+            } catch (NoSuchElementException exception) {
+                // Tolerate streams cut off before their EOF code
+                if (listener != null) listener.truncated();
+                break;
+            }
 
-        // Read codes
-        int code = BinaryStdIn.readInt(CURRENT_BITS);
-        while (!BinaryStdIn.isEmpty()) {
             // Exit early if EOF is reached
             if (code == EOF) {
+                if (listener != null) listener.eof(width);
                 break;
             }
 
-            // Get string value associated with code
-            String codeValue = code < START ? String.valueOf((char) code) : codes[code];
+            // Write out a run, which neither takes a slot nor defines one for the next code
+            if (runs && code == RUN) {
+                value[0] = (byte) in.readInt(8);
+                int remaining = in.readInt();
+                int period = 1;
+                if ((remaining & REPEAT_FLAG) != 0) {
+                    remaining &= ~REPEAT_FLAG;
+                    period = in.readInt(8);
+                    if (period < 2 || period > MAX_PERIOD) throw new IllegalStateException("Invalid run period " + period);
+                    for (int k = 1; k < period; k++) value[k] = (byte) in.readInt(8);
+                }
+                if (listener != null) listener.run(width, period, remaining);
 
-            // Increase bit count if necessary
-            if (currentCode == MAX_CODE - 1) {
-                increaseSize();
+                // Repeat the pattern across as much of value as is needed, in whole patterns
+                int whole = value.length - value.length % period;
+                int filled = Math.min(remaining, whole);
+                for (int k = period; k < filled; k++) value[k] = value[k - period];
+                while (remaining > 0) {
+                    int chunk = Math.min(remaining, whole);
+                    out.write(value, 0, chunk);
+                    remaining -= chunk;
+                }
+                previous = -1;
+                continue;
             }
 
-            // Read lookahead code
-            int lookaheadCode = BinaryStdIn.readInt(CURRENT_BITS);
+            // Every code after the first defines the previous code plus our first character,
+            // until the dictionary is full. Only then is the slot itself still undefined:
+            // the first code of a block may be the last code of a shared dictionary
+            int slot = currentCode - 1;
+            boolean defining = previous != -1 && slot < limit;
+            boolean known = code < EOF
+                    || ((code < slot || code == slot && !defining) && code < length.length && length[code] > 0);
+            if (!known && !(defining && code == slot)) {
+                throw new IllegalStateException("Invalid code " + code);
+            }
 
-            // Write new code
-            if (currentCode < MAX_CODE) {
-                if (lookaheadCode == currentCode) {
-                    // Edge case
-                    String newCodeValue = codeValue + codeValue.charAt(0);
-                    codes[currentCode] = newCodeValue;
+            if (defining) {
+                if (slot >= prefix.length) {
+                    int capacity = (int) Math.min(2L * prefix.length, limit);
+                    prefix = Arrays.copyOf(prefix, capacity);
+                    last = Arrays.copyOf(last, capacity);
+                    first = Arrays.copyOf(first, capacity);
+                    length = Arrays.copyOf(length, capacity);
+                }
+
+                byte firstChar;
+                if (code < EOF) firstChar = (byte) code;
+                else if (code < slot) firstChar = first[code];
+                else firstChar = previous < EOF ? (byte) previous : first[previous]; // Edge case
+
+                if (defined != null && !defined.add(key(previous, firstChar))) {
+                    if (code == slot) throw new IllegalStateException("Invalid code " + code);
+                    currentCode--;
                 } else {
-                    String lookaheadCodeValue = codes[lookaheadCode] != null ? codes[lookaheadCode] : String.valueOf((char) lookaheadCode);
-                    String newCodeValue = codeValue + lookaheadCodeValue.charAt(0);
-                    codes[currentCode] = newCodeValue;
+                    prefix[slot] = previous;
+                    last[slot] = firstChar;
+                    first[slot] = previous < EOF ? (byte) previous : first[previous];
+                    length[slot] = (previous < EOF ? 1 : length[previous]) + 1;
+                }
+            }
+
+            // Write value, walking back from its last character
+            if (code < EOF) {
+                out.write(code);
+            } else {
+                int size = length[code];
+                if (size > value.length) value = new byte[Math.max(size, value.length * 2)];
+                int c = code;
+                for (int k = size - 1; k > 0; k--) {
+                    value[k] = last[c];
+                    c = prefix[c];
                 }
-                currentCode++;
+                value[0] = (byte) c;
+                out.write(value, 0, size);
             }
+            if (listener != null) listener.code(code, width, code < EOF ? 1 : length[code]);
 
-            // Write value
-            BinaryStdOut.write(codeValue);
+            previous = code;
+            currentCode++;
 
-            // Update current code
-            code = lookaheadCode;
+            // Start over from an empty (or the shared) dictionary once it is full
+            if (currentCode == limit && level.reset) {
+                Arrays.fill(length, firstCode, Math.min(limit, length.length), 0);
+                currentCode = firstCode;
+                previous = -1;
+                if (listener != null) listener.reset();
+            }
         }
+    }
+
+    /**
+     * Receives the codes of a stream as expand() reads them, for tools such as
+     * DumpBinary that report on a code stream rather than its contents.
+     */
+    interface CodeListener {
+
+        /** A literal (below EOF) or phrase code of the given width, which stood for length bytes. */
+        void code(int code, int width, int length);
+
+        /** A RUN code of the given width, repeating a pattern of period bytes for length bytes. */
+        void run(int width, int period, int length);
 
-        BinaryStdOut.close();
+        /** The dictionary was full and started over. */
+        void reset();
+
+        /** The EOF code, of the given width, ended the stream. */
+        void eof(int width);
+
+        /** The stream ran out before its EOF code. */
+        void truncated();
+    }
+
+    // the key of the code defined as the given code plus one last character
+    private static long key(int prefix, byte last) {
+        return ((long) prefix << 8) | (last & 0xff);
+    }
+
+    /**
+     * Returns the order-0 entropy of {@code src[off..off+len)} in bits per byte.
+     */
+    static double entropy(byte[] src, int off, int len) {
+        int[] counts = new int[256];
+        for (int i = off; i < off + len; i++) {
+            counts[src[i] & 0xff]++;
+        }
+
+        double bits = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / len;
+            bits -= p * Math.log(p);
+        }
+        return bits / Math.log(2);
     }
 
-    public static void main(String[] args) {
-        if      (args[0].equals("-")) compress();
-        else if (args[0].equals("+")) expand();
+    /**
+     * Compresses input to output, either as one code stream or, when the level's
+     * block size is positive, as a block container with independent blocks of
+     * that many input bytes. If base is given, the blocks start from that dictionary.
+     * @return the most memory any block's dictionary took up, in bytes
+     */
+    static long compress(InputStream input, OutputStream output, CompressionLevel level, SharedDictionary base)
+            throws IOException {
+        BinaryOut out = new BinaryOut(output);
+        if (level.blockSize == 0) {
+            if (base != null) throw new IllegalArgumentException("A shared dictionary needs the block container");
+            if (level.toRecord() != null) throw new IllegalArgumentException("Dictionary limits and flexible parsing need the block container");
+            byte[] src = input.readAllBytes();
+            long peak = compress(src, 0, src.length, out, false, null, level);
+            out.flush();
+            return peak;
+        }
+
+        writeHeader(out, base, level);
+        byte[] block = new byte[level.blockSize];
+        Payload payload = new Payload();
+        long peak = 0;
+        int read;
+        while ((read = input.readNBytes(block, 0, block.length)) > 0) {
+            peak = Math.max(peak, compressBlock(block, 0, read, out, base, level, payload));
+        }
+        out.write(BLOCK_END, 8);
+        out.flush();
+        return peak;
+    }
+
+    /**
+     * Starts a block container, naming the shared dictionary its blocks use, if
+     * any, and the dictionary size, reset policy and parsing expand() has to follow.
+     */
+    static void writeHeader(BinaryOut out, SharedDictionary base, CompressionLevel level) {
+        checkShared(base, level);
+        out.write(BLOCK_MAGIC, 8);
+        byte[] parameters = level.toRecord();
+        if (parameters != null) {
+            out.write(BLOCK_PARAMETERS, 8);
+            out.write(0);
+            out.write(parameters.length);
+            out.write(parameters, 0, parameters.length);
+        }
+        if (base != null) {
+            out.write(BLOCK_DICTIONARY, 8);
+            out.write(0);
+            out.write(Long.BYTES);
+            out.write((int) (base.version() >>> 32));
+            out.write((int) base.version());
+        }
+    }
+
+    /**
+     * Checks that the level leaves room for codes above the shared dictionary, and
+     * that a memory budget can be kept with it.
+     * @throws IllegalArgumentException if base cannot be used at this level
+     */
+    static void checkShared(SharedDictionary base, CompressionLevel level) {
+        if (base == null) return;
+        if (base.size >= level.limit()) {
+            throw new IllegalArgumentException("Shared dictionary of " + base.size + " codes does not fit in "
+                    + level.limit() + " slots");
+        }
+        if (level.memoryBudget > 0 && level.flexible) {
+            throw new IllegalArgumentException("A memory budget with flexible parsing cannot use a shared dictionary");
+        }
+    }
+
+    /**
+     * The compressed payload of one block. A stream keeps one for all of its
+     * blocks, so that the buffers behind it are only allocated once.
+     */
+    static final class Payload extends ByteArrayOutputStream {
+        final BinaryOut bits = new BinaryOut(this);
+
+        // copy the payload to out without making a copy of it first
+        void writeTo(BinaryOut out) {
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Writes {@code src[off..off+len)} to out as one container block, compressed
+     * with LZW unless it would not get any smaller. The codes are gathered in
+     * payload first, since the block starts with their length.
+     * @return the most memory the block's dictionary took up, in bytes
+     */
+    static long compressBlock(byte[] src, int off, int len, BinaryOut out, SharedDictionary base, CompressionLevel level,
+                              Payload payload) {
+        long peak = 0;
+
+        // Skip LZW entirely on blocks that look incompressible
+        if (!level.checkEntropy || entropy(src, off, len) < STORE_ENTROPY) {
+            payload.reset();
+            peak = compress(src, off, len, payload.bits, true, base, level);
+            payload.bits.flush();
+
+            if (payload.size() < len) {
+                out.write(base != null ? BLOCK_LZW_SHARED : BLOCK_LZW_RUNS, 8);
+                out.write(len);
+                out.write(payload.size());
+                payload.writeTo(out);
+                return peak;
+            }
+        }
+
+        // Otherwise store the block as-is
+        out.write(BLOCK_STORED, 8);
+        out.write(len);
+        out.write(len);
+        out.write(src, off, len);
+        return peak;
+    }
+
+    /**
+     * Expands input to output, whether it holds a plain code stream or a block
+     * container. Containers that record a shared dictionary need the same one as base.
+     */
+    static void expand(InputStream input, OutputStream output, SharedDictionary base) throws IOException {
+        InputStream buffered = new BufferedInputStream(input);
+        buffered.mark(1);
+        boolean blocks = buffered.read() == BLOCK_MAGIC;
+        buffered.reset();
+
+        BinaryIn in = new BinaryIn(buffered);
+        if (blocks) {
+            in.readInt(8);
+            expandBlocks(in, output, base);
+        } else {
+            expand(in, output);
+        }
+        output.flush();
+    }
+
+    /**
+     * Decodes the blocks of a block container on all available cores, writing
+     * them back out in order. Only a bounded number of blocks are held at once.
+     */
+    private static void expandBlocks(BinaryIn in, OutputStream out, SharedDictionary base) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        SharedDictionary recorded = null;
+        CompressionLevel parameters = CompressionLevel.DEFAULT;
+        try {
+            while (true) {
+                int type = in.readInt(8);
+                if (type == BLOCK_END) break;
+
+                int rawLength = in.readInt();
+                byte[] payload = new byte[in.readInt()];
+                if (payload.length > 0 && in.readBytes(payload, 0, payload.length) != payload.length) {
+                    throw new IllegalStateException("Truncated block");
+                }
+
+                if (type == BLOCK_DICTIONARY) {
+                    recorded = checkDictionary(payload, base);
+                    continue;
+                }
+                if (type == BLOCK_PARAMETERS) {
+                    parameters = CompressionLevel.fromRecord(payload);
+                    continue;
+                }
+
+                SharedDictionary dictionary = recorded;
+                CompressionLevel level = parameters;
+                if (type == BLOCK_STORED) {
+                    pending.add(CompletableFuture.completedFuture(expandBlock(type, payload, rawLength, null, level)));
+                } else {
+                    pending.add(pool.submit(() -> expandBlock(type, payload, rawLength, dictionary, level)));
+                }
+
+                if (pending.size() >= 2 * threads) {
+                    out.write(await(pending.remove()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.remove()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the shared dictionary that a dictionary record names, which must be base.
+     */
+    static SharedDictionary checkDictionary(byte[] payload, SharedDictionary base) {
+        long version = ByteBuffer.wrap(payload).getLong();
+        if (base == null || base.version() != version) {
+            throw new IllegalStateException("Stream needs shared dictionary version " + Long.toHexString(version));
+        }
+        return base;
+    }
+
+    /**
+     * Expands the payload of one container block of the given type. Blocks that
+     * start from a shared dictionary need the one their stream named as base, and
+     * level holds the code width and reset policy from the stream's parameters.
+     */
+    static byte[] expandBlock(int type, byte[] payload, int rawLength, SharedDictionary base, CompressionLevel level)
+            throws IOException {
+        if (type == BLOCK_STORED) {
+            if (payload.length != rawLength) throw new IllegalStateException("Stored block has the wrong length");
+            return payload;
+        }
+        byte[] block = new byte[rawLength];
+        expandBlock(type, payload, payload.length, block, rawLength, base, level);
+        return block;
+    }
+
+    /**
+     * Expands the first payloadLength bytes of payload, one container block of the
+     * given type, straight into {@code block[0..rawLength)}.
+     */
+    static void expandBlock(int type, byte[] payload, int payloadLength, byte[] block, int rawLength,
+                            SharedDictionary base, CompressionLevel level) throws IOException {
+        if (type == BLOCK_STORED) {
+            if (payloadLength != rawLength) throw new IllegalStateException("Stored block has the wrong length");
+            System.arraycopy(payload, 0, block, 0, rawLength);
+            return;
+        }
+        if (type != BLOCK_LZW && type != BLOCK_LZW_RUNS && type != BLOCK_LZW_SHARED) {
+            throw new IllegalStateException("Unknown block type " + type);
+        }
+        if (type == BLOCK_LZW_SHARED && base == null) {
+            throw new IllegalStateException("Block needs a shared dictionary the stream never named");
+        }
+
+        ArrayOutput out = new ArrayOutput(block, rawLength);
+        BinaryIn in = new BinaryIn(payload, 0, payloadLength);
+        expand(in, out, type != BLOCK_LZW, type == BLOCK_LZW_SHARED ? base : null, level);
+        if (out.count != rawLength) {
+            throw new IllegalStateException("Block expanded to " + out.count + " bytes, expected " + rawLength);
+        }
+    }
+
+    /**
+     * Writes into the start of an array, and refuses to write past its limit.
+     */
+    private static final class ArrayOutput extends OutputStream {
+        private final byte[] bytes;
+        private final int limit;
+        private int count;
+
+        ArrayOutput(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == limit) throw new IllegalStateException("Block expanded past its " + limit + " bytes");
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > limit - count) throw new IllegalStateException("Block expanded past its " + limit + " bytes");
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+    }
+
+    private static <T> T await(Future<T> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a worker", exception);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) throw (IOException) exception.getCause();
+            if (exception.getCause() instanceof RuntimeException) throw (RuntimeException) exception.getCause();
+            throw new IllegalStateException(exception.getCause());
+        }
+    }
+
+    /**
+     * Compresses (-) or expands (+) standard input, or with file names, each of the
+     * given files at once on all available cores. Compressed files get a ".lzw"
+     * suffix, or ".Z" with -Z, which expanding strips again. Files ending in ".Z",
+     * or standard input with -Z, are expanded as .Z files.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean compressing;
+        if      (args[0].equals("-")) compressing = true;
+        else if (args[0].equals("+")) compressing = false;
         else throw new IllegalArgumentException("Illegal command line argument");
+
+        CompressionLevel level = CompressionLevel.DEFAULT;
+        int blockSize = -1;
+        long budget = 0;
+        boolean unix = false;
+        SharedDictionary base = null;
+        boolean leveled = false;
+        List<String> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+
+            // The stream records how it was compressed, so these would be ignored when expanding
+            boolean compressOnly = arg.equals("-m") || arg.matches("-[1-9]") || files.isEmpty() && arg.matches("\\d+");
+            if (compressOnly && !compressing) {
+                throw new IllegalArgumentException(arg + " only applies when compressing");
+            }
+
+            if (arg.equals("-d")) base = new SharedDictionary(Files.readAllBytes(Path.of(args[++i])));
+            else if (arg.equals("-m")) budget = parseBytes(args[++i]);
+            else if (arg.equals("-Z")) unix = true;
+            else if (arg.matches("-[1-9]")) {
+                level = CompressionLevel.of(arg.charAt(1) - '0');
+                leveled = true;
+            } else if (compressOnly) {
+                blockSize = Integer.parseInt(arg);
+            } else {
+                files.add(arg);
+            }
+        }
+        if (blockSize >= 0) level = level.withBlockSize(blockSize);
+        if (budget > 0) level = level.withMemoryBudget(budget);
+        if (compressing) checkShared(base, level);
+        if (unix && (base != null || budget > 0)) {
+            throw new IllegalArgumentException("The .Z format has no shared dictionaries or memory budgets");
+        }
+        if (unix && (leveled || blockSize >= 0)) {
+            throw new IllegalArgumentException("The .Z format has no compression levels or block sizes");
+        }
+
+        if (files.isEmpty()) {
+            if (unix) {
+                OutputStream output = new BufferedOutputStream(System.out, 1 << 16);
+                if (compressing) UnixCompress.compress(System.in, output, UnixCompress.MAX_BITS);
+                else UnixCompress.expand(System.in, output);
+                output.flush();
+            } else if (compressing) {
+                long peak = compress(System.in, System.out, level, base);
+                if (budget > 0) System.err.printf("Peak dictionary memory: %d of %d bytes%n", peak, budget);
+            } else {
+                expand(System.in, new BufferedOutputStream(System.out, 1 << 16), base);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Long>> done = new ArrayList<>();
+        String suffix = unix ? ".Z" : ".lzw";
+        for (String file : files) {
+            CompressionLevel preset = level;
+            SharedDictionary dictionary = base;
+            boolean unixFile = compressing ? unix : file.endsWith(".Z");
+            done.add(pool.submit(() -> {
+                Path source = Path.of(file);
+                Path target = compressing ? Path.of(file + suffix) : Path.of(file.replaceFirst("\\.(lzw|Z)$", ""));
+                if (target.equals(source)) throw new IllegalArgumentException(file + " has no .lzw or .Z suffix");
+                try (InputStream input = Files.newInputStream(source);
+                     OutputStream output = new BufferedOutputStream(Files.newOutputStream(target), 1 << 16)) {
+                    if (unixFile) {
+                        if (compressing) UnixCompress.compress(input, output, UnixCompress.MAX_BITS);
+                        else UnixCompress.expand(input, output);
+                        return 0L;
+                    }
+                    if (compressing) return compress(input, output, preset, dictionary);
+                    expand(input, output, dictionary);
+                    return 0L;
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                long peak = await(done.get(i));
+                if (budget > 0) System.err.printf("%s: peak dictionary memory %d of %d bytes%n", files.get(i), peak, budget);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // a number of bytes, optionally followed by k, m or g
+    private static long parseBytes(String s) {
+        int shift = "kmg".indexOf(Character.toLowerCase(s.charAt(s.length() - 1))) * 10 + 10;
+        if (shift == 0) return Long.parseLong(s);
+        return Long.parseLong(s.substring(0, s.length() - 1)) << shift;
     }
 }
@@ -0,0 +1,349 @@
+/******************************************************************************
+ *  Compilation:  javac UnixCompress.java
+ *  Execution:    java UnixCompress - < input.txt > input.txt.Z   (compress)
+ *  Execution:    java UnixCompress - 12 < input.txt > input.txt.Z (compress, 12-bit codes at most)
+ *  Execution:    java UnixCompress + < input.txt.Z               (expand)
+ *  Dependencies: CodeTable.java
+ *
+ *  Reads and writes the .Z format of the Unix compress utility, so that
+ *  files can be exchanged with compress, uncompress, zcat and gzip -d.
+ *
+ *  % java UnixCompress - < alice.txt > alice.txt.Z
+ *  % gzip -dc alice.txt.Z | cmp - alice.txt
+ ******************************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ *  The {@code UnixCompress} class implements the LZW variant of the Unix
+ *  {@code compress} utility. It differs from {@code TextCompressor}'s own
+ *  code streams in a few ways:
+ *  <ul>
+ *  <li>a three byte header: the magic number 1F 9D, then the widest code in
+ *      the low five bits and the block mode flag in the top bit;</li>
+ *  <li>codes are packed least significant bit first;</li>
+ *  <li>codes are written in groups of eight, so a group of n-bit codes takes
+ *      n bytes. When the code width changes, the rest of the current group is
+ *      padded out, and the next code starts a new group;</li>
+ *  <li>in block mode, code 256 (CLEAR) empties the dictionary and drops back
+ *      to 9-bit codes, again padding out the group. There is no EOF code; the
+ *      stream ends with the file.</li>
+ *  </ul>
+ *  Like compress, this class only clears the dictionary once it is full and
+ *  the compression ratio starts to drop, checked every 10000 input bytes.
+ *
+ *  @author Alexandre Haddad-Delaveau
+ */
+public final class UnixCompress {
+
+    static final int MAGIC_1 = 0x1f;
+    static final int MAGIC_2 = 0x9d;
+
+    static final int MIN_BITS = 9;
+    static final int MAX_BITS = 16;
+
+    private static final int BIT_MASK = 0x1f;     // widest code, in the third header byte
+    private static final int BLOCK_MODE = 0x80;   // CLEAR is in use, in the third header byte
+    private static final int CLEAR = 256;
+    private static final int FIRST = 257;         // first free code in block mode
+    private static final int CHECK_GAP = 10000;   // input bytes between compression ratio checks
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Do not instantiate
+    private UnixCompress() { }
+
+    /**
+     * Compresses input to output in the .Z format, in block mode.
+     * @param input the bytes to compress
+     * @param output where to write the .Z file
+     * @param maxBits the widest code, from 9 to 16
+     * @throws IllegalArgumentException unless {@code 9 <= maxBits <= 16}
+     */
+    public static void compress(InputStream input, OutputStream output, int maxBits) throws IOException {
+        if (maxBits < MIN_BITS || maxBits > MAX_BITS) {
+            throw new IllegalArgumentException("Illegal value for maxBits = " + maxBits);
+        }
+        output.write(MAGIC_1);
+        output.write(MAGIC_2);
+        output.write(maxBits | BLOCK_MODE);
+
+        CodeWriter out = new CodeWriter(output);
+        int maxMaxCode = 1 << maxBits;
+        int maxCode = (1 << MIN_BITS) - 1;
+        int freeEnt = FIRST;
+
+        // Codes of each (prefix code, next byte) pair
+        CodeTable codes = new CodeTable(maxMaxCode);
+
+        byte[] src = new byte[BUFFER_SIZE];
+        int read = input.readNBytes(src, 0, src.length);
+        if (read <= 0) {
+            out.flush();
+            return;
+        }
+
+        long inCount = 1;
+        long checkpoint = CHECK_GAP;
+        long ratio = 0;
+        int ent = src[0] & 0xff;
+        int i = 1;
+        while (true) {
+            if (i == read) {
+                read = input.readNBytes(src, 0, src.length);
+                if (read <= 0) break;
+                i = 0;
+            }
+            int c = src[i++] & 0xff;
+            inCount++;
+
+            // Follow the longest match one byte further
+            int code = codes.get(ent, c);
+            if (code >= 0) {
+                ent = code;
+                continue;
+            }
+
+            // Write the match, then widen codes if the next entry would not fit
+            out.write(ent);
+            if (freeEnt > maxCode) {
+                out.pad();
+                out.bits++;
+                maxCode = out.bits == maxBits ? maxMaxCode : (1 << out.bits) - 1;
+            }
+            ent = c;
+
+            if (freeEnt < maxMaxCode) {
+                codes.add(freeEnt++);
+            } else if (inCount >= checkpoint) {
+                // Once the dictionary is full, start over whenever the ratio drops
+                checkpoint = inCount + CHECK_GAP;
+                long rat = (inCount << 8) / Math.max(1, out.bytesOut());
+                if (rat > ratio) {
+                    ratio = rat;
+                } else {
+                    ratio = 0;
+                    codes.clear(maxMaxCode);
+                    freeEnt = FIRST;
+                    out.write(CLEAR);
+                    out.pad();
+                    out.bits = MIN_BITS;
+                    maxCode = (1 << MIN_BITS) - 1;
+                }
+            }
+        }
+
+        out.write(ent);
+        out.flush();
+    }
+
+    /**
+     * Expands a .Z file from input to output.
+     * @param input the .Z file, starting with its magic number
+     * @param output where to write the expanded bytes
+     * @throws IllegalStateException if input is not a .Z file or is corrupt
+     */
+    public static void expand(InputStream input, OutputStream output) throws IOException {
+        if (input.read() != MAGIC_1 || input.read() != MAGIC_2) throw new IllegalStateException("Not in .Z format");
+        int flags = input.read();
+        if (flags < 0) throw new IllegalStateException("Truncated .Z header");
+        int maxBits = flags & BIT_MASK;
+        boolean blockMode = (flags & BLOCK_MODE) != 0;
+        if (maxBits < MIN_BITS || maxBits > MAX_BITS) {
+            throw new IllegalStateException("Unsupported .Z file with " + maxBits + "-bit codes");
+        }
+
+        CodeReader in = new CodeReader(input);
+        int maxMaxCode = 1 << maxBits;
+        int maxCode = (1 << MIN_BITS) - 1;
+        int freeEnt = blockMode ? FIRST : CLEAR;
+
+        // Each code is stored as the code before it plus one last byte
+        int[] prefix = new int[maxMaxCode];
+        byte[] suffix = new byte[maxMaxCode];
+        byte[] stack = new byte[maxMaxCode];
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count = 0;
+
+        int oldCode = in.read();
+        if (oldCode < 0) {
+            output.flush();
+            return;
+        }
+        if (oldCode >= CLEAR) throw new IllegalStateException("Invalid code " + oldCode);
+        byte finChar = (byte) oldCode;
+        buffer[count++] = finChar;
+
+        while (true) {
+            // Widen codes if the next entry would not fit
+            if (freeEnt > maxCode) {
+                in.skipPadding();
+                in.bits++;
+                maxCode = in.bits == maxBits ? maxMaxCode : (1 << in.bits) - 1;
+            }
+
+            int code = in.read();
+            if (code < 0) break;
+            if (code == CLEAR && blockMode) {
+                in.skipPadding();
+                in.bits = MIN_BITS;
+                maxCode = (1 << MIN_BITS) - 1;
+                freeEnt = CLEAR;
+                code = in.read();
+                if (code < 0) break;
+            }
+            if (code > freeEnt) throw new IllegalStateException("Invalid code " + code);
+
+            // Walk back from the last byte, handling the case of a code defined by itself
+            int inCode = code;
+            int top = stack.length;
+            if (code == freeEnt) {
+                stack[--top] = finChar;
+                code = oldCode;
+            }
+            while (code >= CLEAR) {
+                stack[--top] = suffix[code];
+                code = prefix[code];
+            }
+            finChar = (byte) code;
+            stack[--top] = finChar;
+
+            int size = stack.length - top;
+            if (count + size > buffer.length) {
+                output.write(buffer, 0, count);
+                count = 0;
+                if (size > buffer.length) {
+                    output.write(stack, top, size);
+                    size = 0;
+                }
+            }
+            System.arraycopy(stack, top, buffer, count, size);
+            count += size;
+
+            if (freeEnt < maxMaxCode) {
+                prefix[freeEnt] = oldCode;
+                suffix[freeEnt] = finChar;
+                freeEnt++;
+            }
+            oldCode = inCode;
+        }
+        output.write(buffer, 0, count);
+        output.flush();
+    }
+
+    /**
+     * Writes codes least significant bit first, counting them in groups of eight.
+     */
+    private static final class CodeWriter {
+        private final OutputStream out;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int count;
+        private long total;     // bytes handed to out so far
+        private long buffer;    // bit accumulator (low n bits are valid)
+        private int n;
+        private int codes;      // codes written in the current group
+        int bits = MIN_BITS;    // width of the next code
+
+        CodeWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(int code) throws IOException {
+            buffer |= (long) code << n;
+            n += bits;
+            while (n >= 8) {
+                if (count == bytes.length) writeBytes();
+                bytes[count++] = (byte) buffer;
+                buffer >>>= 8;
+                n -= 8;
+            }
+            codes = (codes + 1) & 7;
+        }
+
+        // fill out the current group with zero codes
+        void pad() throws IOException {
+            while (codes != 0) write(0);
+        }
+
+        long bytesOut() {
+            return total + count;
+        }
+
+        void flush() throws IOException {
+            if (n > 0) {
+                if (count == bytes.length) writeBytes();
+                bytes[count++] = (byte) buffer;
+                buffer = 0;
+                n = 0;
+            }
+            writeBytes();
+            out.flush();
+        }
+
+        private void writeBytes() throws IOException {
+            out.write(bytes, 0, count);
+            total += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * Reads codes least significant bit first, counting them in groups of eight.
+     */
+    private static final class CodeReader {
+        private final InputStream in;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private int position;
+        private int count;
+        private long buffer;    // bit accumulator (low n bits are valid)
+        private int n;
+        private int codes;      // codes read in the current group
+        int bits = MIN_BITS;    // width of the next code
+
+        CodeReader(InputStream in) {
+            this.in = in;
+        }
+
+        // the next code, or -1 if fewer bits than a whole code are left
+        int read() throws IOException {
+            while (n < bits) {
+                if (position == count) {
+                    count = in.read(bytes, 0, bytes.length);
+                    position = 0;
+                    if (count <= 0) {
+                        count = 0;
+                        return -1;
+                    }
+                }
+                buffer |= (long) (bytes[position++] & 0xff) << n;
+                n += 8;
+            }
+            int code = (int) buffer & ((1 << bits) - 1);
+            buffer >>>= bits;
+            n -= bits;
+            codes = (codes + 1) & 7;
+            return code;
+        }
+
+        // skip the rest of the current group
+        void skipPadding() throws IOException {
+            while (codes != 0) {
+                if (read() < 0) return;
+            }
+        }
+    }
+
+    /**
+     * Compresses (-) or expands (+) standard input to standard output. When
+     * compressing, an optional second argument gives the widest code.
+     */
+    public static void main(String[] args) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, BUFFER_SIZE);
+        if      (args[0].equals("-")) compress(System.in, out, args.length > 1 ? Integer.parseInt(args[1]) : MAX_BITS);
+        else if (args[0].equals("+")) expand(System.in, out);
+        else throw new IllegalArgumentException("Illegal command line argument");
+        out.flush();
+    }
+}